@@ -47,6 +47,22 @@ public class AutoGrader {
 	    (Kernel) Lib.constructObject(Config.getString("Kernel.kernel"));
 	kernel.initialize(args);
 
+	// export the statistics however Nachos exits
+	if (ThreadedKernel.schedulerStats != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() {
+			ThreadedKernel.schedulerStats.print();
+		    }
+		});
+	}
+	if (ThreadedKernel.lockStats != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() {
+			ThreadedKernel.lockStats.print();
+		    }
+		});
+	}
+
 	run();
     }
 
@@ -91,6 +107,14 @@ public class AutoGrader {
 	return value;
     }
 
+    String getStringArgument(String key, String defaultValue) {
+	String value = testArgs.get(key);
+	if (value == null)
+	    return defaultValue;
+
+	return value;
+    }
+
     int getIntegerArgument(String key) {
 	try {
 	    return Integer.parseInt(getStringArgument(key));
@@ -102,6 +126,13 @@ public class AutoGrader {
 	}
     }
 
+    int getIntegerArgument(String key, int defaultValue) {
+	if (testArgs.get(key) == null)
+	    return defaultValue;
+
+	return getIntegerArgument(key);
+    }
+
     boolean getBooleanArgument(String key) {
 	String value = getStringArgument(key);
 
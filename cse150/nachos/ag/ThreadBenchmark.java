@@ -0,0 +1,566 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * An autograder that benchmarks the kernel instead of testing it. Each
+ * benchmark measures one context switch or synchronization path of the
+ * kernel: <tt>KThread.yield()</tt> ping-pong, <tt>Semaphore</tt> handoff,
+ * contended <tt>Lock</tt> acquires, <tt>Condition2</tt> round trips and
+ * broadcasts, <tt>Communicator</tt> round trips and pipelines,
+ * <tt>Alarm.waitUntil()</tt> wakeup latency, and the cost of cycling a
+ * thread through a ready queue of increasing length.
+ *
+ * <p>
+ * Like JMH, every benchmark runs a number of warmup iterations, whose results
+ * are discarded, and then a number of measured iterations. The results are
+ * written in JMH's JSON format, with the scheduler named by
+ * <tt>ThreadedKernel.scheduler</tt> as the benchmark parameter, so that runs
+ * with different schedulers or TCB backends can be compared by the usual
+ * tools. Run <tt>gmake bench</tt> in a project directory to benchmark every
+ * scheduler.
+ *
+ * <p>
+ * The benchmark is configured with these test arguments: <tt>output</tt>, the
+ * JSON file to write; <tt>warmup</tt> and <tt>iterations</tt>, the number of
+ * warmup and measured iterations; <tt>ops</tt>, the number of operations in
+ * each iteration; and <tt>threads</tt>, the number of threads contending for
+ * the lock, and woken by each broadcast.
+ */
+public class ThreadBenchmark extends AutoGrader {
+    /**
+     * Allocate a new benchmark autograder.
+     */
+    public ThreadBenchmark() {
+    }
+
+    void init() {
+	output = getStringArgument("output", "bench.json");
+	warmupIterations = getIntegerArgument("warmup", 3);
+	measurementIterations = getIntegerArgument("iterations", 5);
+	ops = getIntegerArgument("ops", 1000);
+	lockThreads = getIntegerArgument("threads", 4);
+
+	Lib.assertTrue(warmupIterations >= 0 && measurementIterations > 0 &&
+		       ops > 0 && lockThreads > 0,
+		       "bad benchmark arguments");
+    }
+
+    void run() {
+	scheduler = Config.getString("ThreadedKernel.scheduler");
+
+	measure(new YieldPingPong());
+	measure(new SemaphorePingPong());
+	measure(new LockContention());
+	measure(new Condition2RoundTrip());
+	measure(new Condition2Broadcast(false));
+	measure(new Condition2Broadcast(true));
+	measure(new CommunicatorRoundTrip());
+	for (int i=0; i<pipelineCapacities.length; i++)
+	    measure(new CommunicatorPipeline(pipelineCapacities[i]));
+	measure(new AlarmAccuracy());
+	for (int i=0; i<queueSizes.length; i++)
+	    measure(new QueueCycle(queueSizes[i]));
+
+	writeResults();
+
+	kernel.terminate();
+    }
+
+    /**
+     * Run the warmup and measured iterations of a benchmark, and record its
+     * result.
+     */
+    private void measure(Benchmark benchmark) {
+	System.out.print(benchmark.name +
+			 (benchmark.param != null ? "(" + benchmark.param + ")" : "")
+			 + ":");
+
+	for (int i=0; i<warmupIterations; i++)
+	    benchmark.iteration(ops);
+
+	double[] scores = new double[measurementIterations];
+	for (int i=0; i<measurementIterations; i++) {
+	    scores[i] = benchmark.iteration(ops);
+	    System.out.print(" " + format(scores[i]));
+	}
+
+	System.out.println(" " + benchmark.unit);
+
+	benchmark.scores = scores;
+	results.add(benchmark);
+    }
+
+    /**
+     * Fork threads running the specified targets, and wait for all of them to
+     * finish.
+     *
+     * @return	the real time that passed, in nanoseconds.
+     */
+    private static long runThreads(Runnable[] targets) {
+	final Semaphore done = new Semaphore(0);
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<targets.length; i++) {
+	    final Runnable target = targets[i];
+	    new KThread(new Runnable() {
+		    public void run() {
+			target.run();
+			done.V();
+		    }
+		}).setName("benchmark " + i).fork();
+	}
+
+	for (int i=0; i<targets.length; i++)
+	    done.P();
+
+	return System.nanoTime() - start;
+    }
+
+    private void writeResults() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintStream out =
+			    new PrintStream(new FileOutputStream(output));
+			printResults(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not write " + output);
+		    }
+		}
+	    });
+    }
+
+    private void printResults(PrintStream out) {
+	out.println("[");
+
+	for (int i=0; i<results.size(); i++) {
+	    Benchmark benchmark = results.get(i);
+
+	    double mean = 0;
+	    for (double score : benchmark.scores)
+		mean += score;
+	    mean /= benchmark.scores.length;
+
+	    double variance = 0;
+	    for (double score : benchmark.scores)
+		variance += (score - mean) * (score - mean);
+	    if (benchmark.scores.length > 1)
+		variance /= benchmark.scores.length - 1;
+
+	    // half-width of a 99.9% confidence interval, as JMH reports
+	    double error = 3.29 * Math.sqrt(variance / benchmark.scores.length);
+
+	    out.println("    {");
+	    out.println("        \"benchmark\" : \"" + getClass().getName() +
+			"." + benchmark.name + "\",");
+	    out.println("        \"mode\" : \"avgt\",");
+	    out.println("        \"threads\" : " + benchmark.threads + ",");
+	    out.println("        \"forks\" : 1,");
+	    out.println("        \"warmupIterations\" : " + warmupIterations +
+			",");
+	    out.println("        \"measurementIterations\" : " +
+			measurementIterations + ",");
+	    out.println("        \"params\" : {");
+	    out.println("            \"scheduler\" : \"" + scheduler + "\"" +
+			(benchmark.param != null ? "," : ""));
+	    if (benchmark.param != null) {
+		out.println("            \"" + benchmark.paramName + "\" : \"" +
+			    benchmark.param + "\"");
+	    }
+	    out.println("        },");
+	    out.println("        \"primaryMetric\" : {");
+	    out.println("            \"score\" : " + format(mean) + ",");
+	    out.println("            \"scoreError\" : " + format(error) + ",");
+	    out.println("            \"scoreUnit\" : \"" + benchmark.unit +
+			"\",");
+
+	    out.print("            \"rawData\" : [ [");
+	    for (int j=0; j<benchmark.scores.length; j++)
+		out.print((j == 0 ? " " : ", ") + format(benchmark.scores[j]));
+	    out.println(" ] ]");
+
+	    out.println("        }");
+	    out.println(i+1 < results.size() ? "    }," : "    }");
+	}
+
+	out.println("]");
+    }
+
+    private static String format(double value) {
+	return String.valueOf(Math.round(value * 1000) / 1000.0);
+    }
+
+    /**
+     * A single benchmark. Each iteration performs a number of operations and
+     * returns the average cost of one.
+     */
+    private abstract static class Benchmark {
+	Benchmark(String name, String unit, int threads) {
+	    this.name = name;
+	    this.unit = unit;
+	    this.threads = threads;
+	}
+
+	Benchmark(String name, String unit, int threads, String paramName,
+		  String param) {
+	    this(name, unit, threads);
+	    this.paramName = paramName;
+	    this.param = param;
+	}
+
+	abstract double iteration(int ops);
+
+	String name, unit;
+	int threads;
+	/** An extra parameter of this benchmark, or <tt>null</tt>. */
+	String paramName = null, param = null;
+	double[] scores;
+    }
+
+    /** Two threads yielding to each other. Measures one yield. */
+    private static class YieldPingPong extends Benchmark {
+	YieldPingPong() {
+	    super("yieldPingPong", "ns/op", 2);
+	}
+
+	double iteration(final int ops) {
+	    Runnable yielder = new Runnable() {
+		    public void run() {
+			for (int i=0; i<ops; i++)
+			    KThread.yield();
+		    }
+		};
+
+	    return (double) runThreads(new Runnable[] { yielder, yielder })
+		/ (2 * ops);
+	}
+    }
+
+    /**
+     * Two threads handing a pair of semaphores back and forth. Measures one
+     * round trip.
+     */
+    private static class SemaphorePingPong extends Benchmark {
+	SemaphorePingPong() {
+	    super("semaphorePingPong", "ns/op", 2);
+	}
+
+	double iteration(final int ops) {
+	    final Semaphore ping = new Semaphore(0);
+	    final Semaphore pong = new Semaphore(0);
+
+	    Runnable pinger = new Runnable() {
+		    public void run() {
+			for (int i=0; i<ops; i++) {
+			    ping.V();
+			    pong.P();
+			}
+		    }
+		};
+	    Runnable ponger = new Runnable() {
+		    public void run() {
+			for (int i=0; i<ops; i++) {
+			    ping.P();
+			    pong.V();
+			}
+		    }
+		};
+
+	    return (double) runThreads(new Runnable[] { pinger, ponger }) / ops;
+	}
+    }
+
+    /**
+     * Threads acquiring a lock and yielding while holding it, so that every
+     * acquire after the first contends. Measures one acquire and release.
+     */
+    private class LockContention extends Benchmark {
+	LockContention() {
+	    super("lockContention", "ns/op", lockThreads);
+	}
+
+	double iteration(int ops) {
+	    final Lock lock = new Lock();
+	    final int each = (ops + lockThreads - 1) / lockThreads;
+
+	    Runnable[] targets = new Runnable[lockThreads];
+	    for (int i=0; i<lockThreads; i++) {
+		targets[i] = new Runnable() {
+			public void run() {
+			    for (int j=0; j<each; j++) {
+				lock.acquire();
+				KThread.yield();
+				lock.release();
+			    }
+			}
+		    };
+	    }
+
+	    return (double) runThreads(targets) / (each * lockThreads);
+	}
+    }
+
+    /**
+     * Two threads taking turns through one condition variable. Measures one
+     * round trip.
+     */
+    private static class Condition2RoundTrip extends Benchmark {
+	Condition2RoundTrip() {
+	    super("condition2RoundTrip", "ns/op", 2);
+	}
+
+	double iteration(final int ops) {
+	    final Lock lock = new Lock();
+	    final Condition2 turn = new Condition2(lock);
+	    final boolean[] pinged = new boolean[1];
+
+	    Runnable pinger = new Runnable() {
+		    public void run() {
+			lock.acquire();
+			for (int i=0; i<ops; i++) {
+			    while (pinged[0])
+				turn.sleep();
+			    pinged[0] = true;
+			    turn.wake();
+			}
+			lock.release();
+		    }
+		};
+	    Runnable ponger = new Runnable() {
+		    public void run() {
+			lock.acquire();
+			for (int i=0; i<ops; i++) {
+			    while (!pinged[0])
+				turn.sleep();
+			    pinged[0] = false;
+			    turn.wake();
+			}
+			lock.release();
+		    }
+		};
+
+	    return (double) runThreads(new Runnable[] { pinger, ponger }) / ops;
+	}
+    }
+
+    /**
+     * One speaker and one listener exchanging words. Measures one word.
+     */
+    private static class CommunicatorRoundTrip extends Benchmark {
+	CommunicatorRoundTrip() {
+	    super("communicatorRoundTrip", "ns/op", 2);
+	}
+
+	double iteration(final int ops) {
+	    final Communicator communicator = new Communicator();
+
+	    Runnable speaker = new Runnable() {
+		    public void run() {
+			for (int i=0; i<ops; i++)
+			    communicator.speak(i);
+		    }
+		};
+	    Runnable listener = new Runnable() {
+		    public void run() {
+			for (int i=0; i<ops; i++)
+			    Lib.assertTrue(communicator.listen() == i,
+					   "communicator lost a word");
+		    }
+		};
+
+	    return (double) runThreads(new Runnable[] { speaker, listener })
+		/ ops;
+	}
+    }
+
+    /**
+     * A thread waking <tt>threads</tt> threads at once with
+     * <tt>Condition2.wakeAll()</tt>, with or without wait morphing, and
+     * waiting for all of them to come back. Measures one broadcast.
+     */
+    private class Condition2Broadcast extends Benchmark {
+	Condition2Broadcast(boolean morph) {
+	    super("condition2Broadcast", "ns/op", lockThreads+1, "morph",
+		  String.valueOf(morph));
+
+	    this.morph = morph;
+	}
+
+	double iteration(final int ops) {
+	    final Lock lock = new Lock();
+	    final Condition2 go = new Condition2(lock, null, morph);
+	    final Condition2 arrived = new Condition2(lock);
+	    // the waiters that have arrived, and the broadcasts so far
+	    final int[] state = new int[2];
+
+	    Runnable waiter = new Runnable() {
+		    public void run() {
+			lock.acquire();
+			for (int i=0; i<ops; i++) {
+			    if (++state[0] == lockThreads)
+				arrived.wake();
+			    while (state[1] == i)
+				go.sleep();
+			}
+			lock.release();
+		    }
+		};
+	    Runnable broadcaster = new Runnable() {
+		    public void run() {
+			lock.acquire();
+			for (int i=0; i<ops; i++) {
+			    while (state[0] < lockThreads)
+				arrived.sleep();
+			    state[0] = 0;
+			    state[1]++;
+			    go.wakeAll();
+			}
+			lock.release();
+		    }
+		};
+
+	    Runnable[] targets = new Runnable[lockThreads+1];
+	    for (int i=0; i<lockThreads; i++)
+		targets[i] = waiter;
+	    targets[lockThreads] = broadcaster;
+
+	    return (double) runThreads(targets) / ops;
+	}
+
+	private boolean morph;
+    }
+
+    /**
+     * One speaker and one listener streaming words through a communicator
+     * with a buffer of the given capacity, a batch at a time. Measures one
+     * word.
+     */
+    private static class CommunicatorPipeline extends Benchmark {
+	CommunicatorPipeline(int capacity) {
+	    super("communicatorPipeline", "ns/op", 2, "capacity",
+		  String.valueOf(capacity));
+
+	    this.capacity = capacity;
+	}
+
+	double iteration(final int ops) {
+	    final Communicator communicator = new Communicator(capacity);
+	    final int words = (ops + batchSize - 1) / batchSize * batchSize;
+
+	    Runnable speaker = new Runnable() {
+		    public void run() {
+			int[] batch = new int[batchSize];
+			for (int i=0; i<words; i+=batchSize) {
+			    for (int j=0; j<batchSize; j++)
+				batch[j] = i+j;
+			    communicator.speak(batch);
+			}
+		    }
+		};
+	    Runnable listener = new Runnable() {
+		    public void run() {
+			int[] batch = new int[batchSize];
+			for (int i=0; i<words; ) {
+			    int amount = communicator.listen(batch);
+			    for (int j=0; j<amount; j++, i++)
+				Lib.assertTrue(batch[j] == i,
+					       "communicator lost a word");
+			}
+		    }
+		};
+
+	    return (double) runThreads(new Runnable[] { speaker, listener })
+		/ words;
+	}
+
+	private int capacity;
+	private static final int batchSize = 16;
+    }
+
+    /**
+     * A thread sleeping for a spread of durations. Measures how late the
+     * thread wakes up, in simulated ticks.
+     */
+    private static class AlarmAccuracy extends Benchmark {
+	AlarmAccuracy() {
+	    super("alarmAccuracy", "ticks/op", 1);
+	}
+
+	double iteration(int ops) {
+	    // every sleep takes at least one timer interrupt of real work, so
+	    // don't sleep as often as the other benchmarks switch
+	    int sleeps = Math.min(ops, maxSleeps);
+	    long late = 0;
+
+	    for (int i=0; i<sleeps; i++) {
+		long duration = 1 + (i * 337) % (4 * Stats.TimerTicks);
+		long wake = Machine.timer().getTime() + duration;
+
+		ThreadedKernel.alarm.waitUntil(duration);
+
+		late += Machine.timer().getTime() - wake;
+	    }
+
+	    return (double) late / sleeps;
+	}
+
+	private static final int maxSleeps = 100;
+    }
+
+    /**
+     * A ready queue holding a number of threads, from which the next thread
+     * is repeatedly taken and put back. Measures one cycle, which shows how
+     * the scheduler's choice scales with the length of the queue.
+     */
+    private static class QueueCycle extends Benchmark {
+	QueueCycle(int size) {
+	    super("queueCycle", "ns/op", 1, "queueSize", String.valueOf(size));
+
+	    this.size = size;
+	}
+
+	double iteration(int ops) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    if (queue == null) {
+		queue = ThreadedKernel.scheduler.newThreadQueue(false);
+		for (int i=0; i<size; i++) {
+		    KThread thread = new KThread().setName("queued " + i);
+		    queue.waitForAccess(thread);
+		}
+	    }
+
+	    long start = System.nanoTime();
+
+	    for (int i=0; i<ops; i++)
+		queue.waitForAccess(queue.nextThread());
+
+	    long elapsed = System.nanoTime() - start;
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return (double) elapsed / ops;
+	}
+
+	private int size;
+	private ThreadQueue queue = null;
+    }
+
+    private static final int[] queueSizes = { 16, 256, 4096 };
+    private static final int[] pipelineCapacities = { 0, 16, 256 };
+
+    private String output;
+    private int warmupIterations, measurementIterations, ops, lockThreads;
+    private String scheduler;
+    private ArrayList<Benchmark> results = new ArrayList<Benchmark>();
+}
@@ -0,0 +1,367 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A minimal assembler for JVM class files. A class consists of methods whose
+ * code is emitted one instruction at a time; the result is the bytes of a
+ * class file, ready to be defined by a class loader or a lookup.
+ *
+ * <p>
+ * Classes are written with class file version 49, so no stack map frames are
+ * needed, and the caller is responsible for the maximum stack depth and
+ * number of locals of each method.
+ */
+public final class ClassAssembler {
+    /**
+     * Allocate a new assembler for a class.
+     *
+     * @param	className	the internal name of the class, such as
+     *				<tt>nachos/machine/Foo</tt>.
+     * @param	superName	the internal name of the superclass.
+     */
+    public ClassAssembler(String className, String superName) {
+	thisClass = classRef(className);
+	superClass = classRef(superName);
+    }
+
+    /**
+     * Return the constant pool index of a class reference.
+     *
+     * @param	name	the internal name of the class.
+     * @return	the constant pool index.
+     */
+    public int classRef(String name) {
+	return constant("C" + name, 7, utf8(name), -1);
+    }
+
+    /**
+     * Return the constant pool index of a method reference.
+     *
+     * @param	owner		the internal name of the declaring class.
+     * @param	name		the name of the method.
+     * @param	descriptor	the descriptor of the method.
+     * @return	the constant pool index.
+     */
+    public int methodRef(String owner, String name, String descriptor) {
+	return constant("M" + owner + "." + name + descriptor, 10,
+			classRef(owner), nameAndType(name, descriptor));
+    }
+
+    /**
+     * Return the constant pool index of a field reference.
+     *
+     * @param	owner		the internal name of the declaring class.
+     * @param	name		the name of the field.
+     * @param	descriptor	the descriptor of the field.
+     * @return	the constant pool index.
+     */
+    public int fieldRef(String owner, String name, String descriptor) {
+	return constant("F" + owner + "." + name + descriptor, 9,
+			classRef(owner), nameAndType(name, descriptor));
+    }
+
+    /**
+     * Start a new method. Instructions are added to this method until
+     * <tt>endMethod()</tt> is called.
+     *
+     * @param	access		the access flags of the method.
+     * @param	name		the name of the method.
+     * @param	descriptor	the descriptor of the method.
+     */
+    public void beginMethod(int access, String name, String descriptor) {
+	Lib.assertTrue(code == null);
+
+	methodAccess = access;
+	methodName = utf8(name);
+	methodDescriptor = utf8(descriptor);
+	code = new ByteArrayOutputStream();
+	labels.clear();
+	fixups.clear();
+    }
+
+    /**
+     * Emit an instruction with no operands.
+     *
+     * @param	opcode	the opcode.
+     */
+    public void op(int opcode) {
+	code.write(opcode);
+    }
+
+    /**
+     * Emit an instruction with a two byte operand, such as a constant pool
+     * index.
+     *
+     * @param	opcode	the opcode.
+     * @param	operand	the operand.
+     */
+    public void op(int opcode, int operand) {
+	code.write(opcode);
+	code.write(operand >> 8);
+	code.write(operand);
+    }
+
+    /**
+     * Emit a load or store of a local variable.
+     *
+     * @param	opcode	one of the <tt>xLOAD</tt> or <tt>xSTORE</tt> opcodes.
+     * @param	local	the number of the local variable.
+     */
+    public void local(int opcode, int local) {
+	Lib.assertTrue(local >= 0 && local < 256);
+
+	code.write(opcode);
+	code.write(local);
+    }
+
+    /**
+     * Emit the shortest instruction that pushes an integer constant.
+     *
+     * @param	value	the constant to push.
+     */
+    public void pushInt(int value) {
+	if (value >= -1 && value <= 5) {
+	    op(ICONST_0 + value);
+	}
+	else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+	    code.write(BIPUSH);
+	    code.write(value);
+	}
+	else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+	    op(SIPUSH, value);
+	}
+	else {
+	    op(LDC_W, constant("I" + value, 3, value, -1));
+	}
+    }
+
+    /**
+     * Allocate a new label, to be bound later with <tt>bind()</tt>.
+     *
+     * @return	the label.
+     */
+    public int newLabel() {
+	labels.add(-1);
+	return labels.size() - 1;
+    }
+
+    /**
+     * Bind a label to the address of the next instruction.
+     *
+     * @param	label	the label to bind.
+     */
+    public void bind(int label) {
+	Lib.assertTrue(labels.get(label) == -1);
+
+	labels.set(label, code.size());
+    }
+
+    /**
+     * Emit a branch to a label.
+     *
+     * @param	opcode	the branch opcode.
+     * @param	label	the label to branch to.
+     */
+    public void branch(int opcode, int label) {
+	fixups.add(new int[] { code.size(), label });
+	op(opcode, 0);
+    }
+
+    /**
+     * Finish the current method.
+     *
+     * @param	maxStack	the maximum depth of the operand stack.
+     * @param	maxLocals	the number of local variables, including the
+     *				arguments.
+     */
+    public void endMethod(int maxStack, int maxLocals) {
+	byte[] bytes = code.toByteArray();
+
+	for (int[] fixup : fixups) {
+	    int target = labels.get(fixup[1]);
+	    Lib.assertTrue(target != -1);
+
+	    int offset = target - fixup[0];
+	    Lib.assertTrue(offset >= Short.MIN_VALUE && offset <= Short.MAX_VALUE);
+
+	    bytes[fixup[0]+1] = (byte) (offset >> 8);
+	    bytes[fixup[0]+2] = (byte) offset;
+	}
+
+	try {
+	    DataOutputStream out = new DataOutputStream(methods);
+	    out.writeShort(methodAccess);
+	    out.writeShort(methodName);
+	    out.writeShort(methodDescriptor);
+	    out.writeShort(1);
+	    out.writeShort(utf8("Code"));
+	    out.writeInt(12 + bytes.length);
+	    out.writeShort(maxStack);
+	    out.writeShort(maxLocals);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	    out.writeShort(0);
+	    out.writeShort(0);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	numMethods++;
+	code = null;
+    }
+
+    /**
+     * Return the size of the code emitted so far for the current method.
+     *
+     * @return	the size of the code, in bytes.
+     */
+    public int codeSize() {
+	return code.size();
+    }
+
+    /**
+     * Return the contents of the assembled class file.
+     *
+     * @return	the bytes of the class file.
+     */
+    public byte[] toByteArray() {
+	Lib.assertTrue(code == null);
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	try {
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+	    out.writeShort(pool.size() + 1);
+
+	    for (Object[] entry : pool) {
+		int tag = (Integer) entry[0];
+		out.writeByte(tag);
+
+		switch (tag) {
+		case 1:
+		    out.writeUTF((String) entry[1]);
+		    break;
+		case 3:
+		    out.writeInt((Integer) entry[1]);
+		    break;
+		case 7:
+		    out.writeShort((Integer) entry[1]);
+		    break;
+		default:
+		    out.writeShort((Integer) entry[1]);
+		    out.writeShort((Integer) entry[2]);
+		    break;
+		}
+	    }
+
+	    out.writeShort(ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);
+	    out.writeShort(0);
+	    out.writeShort(numMethods);
+	    methods.writeTo(out);
+	    out.writeShort(0);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+	Integer index = poolIndex.get("U" + value);
+	if (index != null)
+	    return index;
+
+	pool.add(new Object[] { 1, value });
+	poolIndex.put("U" + value, pool.size());
+	return pool.size();
+    }
+
+    private int nameAndType(String name, String descriptor) {
+	return constant("N" + name + ":" + descriptor, 12,
+			utf8(name), utf8(descriptor));
+    }
+
+    private int constant(String key, int tag, int a, int b) {
+	Integer index = poolIndex.get(key);
+	if (index != null)
+	    return index;
+
+	pool.add(new Object[] { tag, a, b });
+	poolIndex.put(key, pool.size());
+	return pool.size();
+    }
+
+    private ArrayList<Object[]> pool = new ArrayList<Object[]>();
+    private HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+    private int thisClass, superClass;
+
+    private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private int numMethods = 0;
+
+    private int methodAccess, methodName, methodDescriptor;
+    private ByteArrayOutputStream code = null;
+    private ArrayList<Integer> labels = new ArrayList<Integer>();
+    private ArrayList<int[]> fixups = new ArrayList<int[]>();
+
+    /** Access flags. */
+    public static final int
+	ACC_PUBLIC	= 0x0001,
+	ACC_FINAL	= 0x0010,
+	ACC_SUPER	= 0x0020;
+
+    /** Opcodes. */
+    public static final int
+	ICONST_0	= 0x03,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	ILOAD		= 0x15,
+	ALOAD		= 0x19,
+	IALOAD		= 0x2e,
+	ISTORE		= 0x36,
+	IASTORE		= 0x4f,
+	DUP2		= 0x5c,
+	IADD		= 0x60,
+	ISUB		= 0x64,
+	ISHL		= 0x78,
+	LSHL		= 0x79,
+	ISHR		= 0x7a,
+	LSHR		= 0x7b,
+	LUSHR		= 0x7d,
+	IAND		= 0x7e,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	I2L		= 0x85,
+	L2I		= 0x88,
+	IFEQ		= 0x99,
+	IFNE		= 0x9a,
+	IFLT		= 0x9b,
+	IFGE		= 0x9c,
+	IFGT		= 0x9d,
+	IFLE		= 0x9e,
+	IF_ICMPEQ	= 0x9f,
+	IF_ICMPNE	= 0xa0,
+	IF_ICMPLT	= 0xa1,
+	IF_ICMPGE	= 0xa2,
+	GOTO		= 0xa7,
+	IRETURN		= 0xac,
+	RETURN		= 0xb1,
+	PUTFIELD	= 0xb5,
+	INVOKEVIRTUAL	= 0xb6,
+	INVOKESPECIAL	= 0xb7;
+}
@@ -181,6 +181,7 @@ public class CoffSection {
 
 	int pageSize = Processor.pageSize;
 	byte[] memory = Machine.processor().getMemory();
+	Machine.processor().invalidatePage(ppn);
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
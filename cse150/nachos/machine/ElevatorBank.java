@@ -211,10 +211,21 @@ public final class ElevatorBank implements Runnable {
 	    Lib.assertTrue(floor >= 0 && floor < numFloors);
 	    Lib.assertTrue(elevator >= 0 && elevator < numElevators);
 
-	    if (!elevators[elevator].moveTo(floor))
+	    ElevatorState state = elevators[elevator];
+	    boolean wasMoving = state.moving;
+
+	    if (!state.moveTo(floor))
 		return false;
-	    
-	    schedule(Stats.ElevatorTicks);
+
+	    // a redirected elevator already has an interrupt for its next
+	    // floor, but a new movement needs one due at its own ETA
+	    if (state.nextFloor != null && state.nextFloor.isPending()) {
+		if (!wasMoving)
+		    state.nextFloor.reschedule(Stats.ElevatorTicks);
+	    }
+	    else {
+		state.nextFloor = schedule(Stats.ElevatorTicks);
+	    }
 	    return true;
 	}
 	
@@ -260,8 +271,8 @@ public final class ElevatorBank implements Runnable {
 		return (ElevatorEvent) events.removeFirst();
 	}
 
-	void schedule(int when) {
-	    privilege.interrupt.schedule(when, "elevator", interrupt);
+	Interrupt.Handle schedule(int when) {
+	    return privilege.interrupt.schedule(when, "elevator", interrupt);
 	}
 
         void postEvent(int event, int floor, int elevator, boolean schedule) {
@@ -283,9 +294,12 @@ public final class ElevatorBank implements Runnable {
 		    }
 		    else {
 			elevators[i].nextETA += Stats.ElevatorTicks;
-			privilege.interrupt.schedule(Stats.ElevatorTicks,
-						   "elevator",
-						   interrupt);
+
+			// this elevator's own interrupt may not have run yet
+			if (elevators[i].nextFloor.isPending())
+			    elevators[i].nextFloor.reschedule(Stats.ElevatorTicks);
+			else
+			    elevators[i].nextFloor = schedule(Stats.ElevatorTicks);
 		    }
 		}
 	    }
@@ -417,6 +431,7 @@ public final class ElevatorBank implements Runnable {
 
 	int floor, destination;
 	long nextETA;
+	Interrupt.Handle nextFloor = null;
 	
 	boolean doorsOpen = false, moving = false;
 	int direction = dirNeither;
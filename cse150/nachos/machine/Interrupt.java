@@ -7,6 +7,8 @@ import nachos.security.*;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +55,16 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	String queue = Config.getString("Interrupt.pendingQueue", "tree");
+	if (queue.equals("wheel")) {
+	    pending = new WheelQueue();
+	}
+	else {
+	    Lib.assertTrue(queue.equals("tree"),
+			   "unknown Interrupt.pendingQueue " + queue);
+	    pending = new TreeQueue();
+	}
     }
 
     /**
@@ -120,7 +131,33 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Let the processor sit idle until the next pending interrupt, as if it
+     * were halted. Simulated time advances in whole kernel ticks up to, but
+     * not including, the tick that will find the interrupt due, so the
+     * interrupt is taken by the next tick at exactly the same time as it
+     * would be if the kernel had kept ticking until then.
+     *
+     * <p>
+     * The kernel should only do this when no thread is ready to run.
+     */
+    public void idle() {
+	long next = nextInterruptTime();
+	if (next == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = (next - stats.totalTicks - 1) / Stats.KernelTick;
+	if (ticks <= 0)
+	    return;
+
+	Lib.debug(dbgInt, "Idle for " + ticks + " kernel ticks");
+
+	stats.kernelTicks += ticks * Stats.KernelTick;
+	stats.totalTicks += ticks * Stats.KernelTick;
+    }
+
+    private Handle schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
@@ -131,6 +168,41 @@ public final class Interrupt {
 		  " interrupt handler at time = " + time);
 
 	pending.add(toOccur);
+	toOccur.scheduled = true;
+
+	return toOccur;
+    }
+
+    private boolean cancel(PendingInterrupt toOccur) {
+	if (!toOccur.scheduled)
+	    return false;
+
+	Lib.debug(dbgInt,
+		  "Cancelling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
+
+	pending.remove(toOccur);
+	toOccur.scheduled = false;
+
+	return true;
+    }
+
+    private void reschedule(PendingInterrupt toOccur, long when) {
+	Lib.assertTrue(when>0);
+
+	if (toOccur.scheduled)
+	    pending.remove(toOccur);
+
+	// a rescheduled interrupt runs after others already due at its time
+	toOccur.time = privilege.stats.totalTicks + when;
+	toOccur.id = numPendingInterruptsCreated++;
+
+	Lib.debug(dbgInt,
+		  "Rescheduling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
+
+	pending.add(toOccur);
+	toOccur.scheduled = true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -164,15 +236,14 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.first().time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (!pending.isEmpty() && pending.first().time <= time) {
+	    PendingInterrupt next = pending.removeFirst();
+	    next.scheduled = false;
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -180,6 +251,7 @@ public final class Interrupt {
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
+	    privilege.stats.numInterrupts++;
 			
 	    next.handler.run();
 	}
@@ -187,13 +259,37 @@ public final class Interrupt {
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    private long nextInterruptTime() {
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	return pending.first().time;
+    }
+
+    private void tickUser(int numInstructions) {
+	Lib.assertTrue(numInstructions > 0);
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) numInstructions * Stats.UserTick;
+	stats.totalTicks += (long) numInstructions * Stats.UserTick;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("== Tick " + stats.totalTicks + " ==");
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (Iterator<PendingInterrupt> i=pending.sortedIterator();
+	     i.hasNext(); ) {
+	    PendingInterrupt toOccur = i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,7 +297,39 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
+    /**
+     * A handle on a scheduled interrupt, returned when the interrupt is
+     * scheduled. A device that changes its mind about when it needs an
+     * interrupt can move or cancel the one it has, rather than leave it
+     * pending and ignore it when it occurs.
+     */
+    public interface Handle {
+	/**
+	 * Cancel the interrupt, if it has not yet occurred.
+	 *
+	 * @return	<tt>true</tt> if the interrupt was pending.
+	 */
+	public boolean cancel();
+
+	/**
+	 * Move the interrupt to occur at some time in the future. If it has
+	 * already occurred or been cancelled, it is scheduled again.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void reschedule(long when);
+
+	/**
+	 * Test whether the interrupt is still waiting to occur.
+	 *
+	 * @return	<tt>true</tt> if the interrupt is pending.
+	 */
+	public boolean isPending();
+    }
+
+    private class PendingInterrupt extends TimingWheel.Entry
+	implements Comparable<PendingInterrupt>, Handle {
 	PendingInterrupt(long time, String type, Runnable handler) {
 	    this.time = time;
 	    this.type = type;
@@ -209,9 +337,7 @@ public final class Interrupt {
 	    this.id = numPendingInterruptsCreated++;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -225,11 +351,115 @@ public final class Interrupt {
 		return 0;
 	}
 
-	long time;
+	public boolean cancel() {
+	    return Interrupt.this.cancel(this);
+	}
+
+	public void reschedule(long when) {
+	    Interrupt.this.reschedule(this, when);
+	}
+
+	public boolean isPending() {
+	    return scheduled;
+	}
+
 	String type;
 	Runnable handler;
 
 	private long id;
+	/** <tt>true</tt> while this interrupt is in the pending queue. */
+	private boolean scheduled = false;
+    }
+
+    /**
+     * The pending interrupts, ordered by time, and in the order they were
+     * scheduled among those due at the same time.
+     */
+    private interface PendingQueue {
+	boolean isEmpty();
+
+	void add(PendingInterrupt toOccur);
+
+	void remove(PendingInterrupt toOccur);
+
+	/** Return the next interrupt to occur, or <tt>null</tt> if none. */
+	PendingInterrupt first();
+
+	/**
+	 * Remove and return the next interrupt to occur, which must already be
+	 * due.
+	 */
+	PendingInterrupt removeFirst();
+
+	Iterator<PendingInterrupt> sortedIterator();
+    }
+
+    /** A pending interrupt queue kept in a balanced tree. */
+    private class TreeQueue implements PendingQueue {
+	public boolean isEmpty() {
+	    return set.isEmpty();
+	}
+
+	public void add(PendingInterrupt toOccur) {
+	    set.add(toOccur);
+	}
+
+	public void remove(PendingInterrupt toOccur) {
+	    set.remove(toOccur);
+	}
+
+	public PendingInterrupt first() {
+	    return set.isEmpty() ? null : set.first();
+	}
+
+	public PendingInterrupt removeFirst() {
+	    return set.pollFirst();
+	}
+
+	public Iterator<PendingInterrupt> sortedIterator() {
+	    return set.iterator();
+	}
+
+	private TreeSet<PendingInterrupt> set = new TreeSet<PendingInterrupt>();
+    }
+
+    /**
+     * A pending interrupt queue kept in a timing wheel, keyed on the absolute
+     * time of each interrupt, and advanced to the time of each interrupt
+     * taken.
+     */
+    private class WheelQueue implements PendingQueue {
+	public boolean isEmpty() {
+	    return wheel.isEmpty();
+	}
+
+	public void add(PendingInterrupt toOccur) {
+	    wheel.add(toOccur, toOccur.time);
+	}
+
+	public void remove(PendingInterrupt toOccur) {
+	    wheel.remove(toOccur);
+	}
+
+	public PendingInterrupt first() {
+	    return wheel.first();
+	}
+
+	public PendingInterrupt removeFirst() {
+	    Lib.assertTrue(wheel.first().time <= privilege.stats.totalTicks);
+
+	    return wheel.removeFirst();
+	}
+
+	public Iterator<PendingInterrupt> sortedIterator() {
+	    ArrayList<PendingInterrupt> all = wheel.entries();
+
+	    Collections.sort(all);
+	    return all.iterator();
+	}
+
+	private TimingWheel<PendingInterrupt> wheel =
+	    new TimingWheel<PendingInterrupt>();
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +467,25 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingQueue pending;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public Handle schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
+
+	public void tickUser(int numInstructions) {
+	    Interrupt.this.tickUser(numInstructions);
+	}
     }
 }
@@ -100,6 +100,13 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Count a job of a periodic thread that finished after its deadline.
+     */
+    public static void deadlineMissed() {
+	stats.numDeadlineMisses++;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
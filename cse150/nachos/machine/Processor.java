@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -12,6 +16,14 @@ import nachos.security.*;
  * exception handler to be called on any user mode exception.
  *
  * <p>
+ * The processor also implements the MIPS II <tt>ll</tt> and <tt>sc</tt>
+ * instructions, so user programs can build atomic read-modify-write operations
+ * such as compare-and-swap. The link set by <tt>ll</tt> is broken whenever the
+ * kernel is entered, for an exception or an interrupt; since only the kernel
+ * can switch threads, an <tt>sc</tt> succeeds exactly when no other thread can
+ * have run since the matching <tt>ll</tt>.
+ *
+ * <p>
  * The <tt>Processor</tt> API is re-entrant, so a single simulated processor
  * can be shared by multiple user threads.
  *
@@ -47,6 +59,27 @@ public final class Processor {
 
 	mainMemory = new byte[pageSize * numPhysPages];
 
+	cacheDecoded = Config.getBoolean("Processor.cacheDecoded", true);
+	decodedPages = new DecodedInstruction[numPhysPages][];
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	if (engine.equals("threaded")) {
+	    threaded = true;
+	}
+	else if (engine.equals("jit")) {
+	    threaded = true;
+	    jit = findDefineHiddenClass();
+	    jitThreshold = Config.getInteger("Processor.jitThreshold", 100);
+	    Lib.assertTrue(jitThreshold > 0);
+	}
+	else
+	    Lib.assertTrue(engine.equals("interpreter"),
+			   "unknown Processor.engine " + engine);
+
+	blockPages = new Block[numPhysPages][];
+
+	batchTicks = Config.getBoolean("Processor.batchTicks", true);
+
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
@@ -91,11 +124,23 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (privilege.stats.processorStartTime == 0)
+	    privilege.stats.processorStartTime = System.nanoTime();
+
+	// tracing wants to see every instruction, so only interpret then
+	if (threaded && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble))
+	    runBlocks();
+
+	if (batchTicks)
+	    runBatched();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
 	    try {
 		inst.run();
+		privilege.stats.numInstructions++;
 	    }
 	    catch (MipsException e) {
 		e.handle();
@@ -105,6 +150,217 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Interpret instructions in a tight loop up to the next pending
+     * interrupt, and only then advance simulated time for all of them. Never
+     * returns.
+     *
+     * <p>
+     * Nothing a user instruction does can schedule an interrupt, so the
+     * interrupt is taken after exactly the same instruction as it would be by
+     * ticking after every instruction.
+     */
+    private void runBatched() {
+	Instruction inst = new Instruction();
+
+	while (true) {
+	    int maxInstructions = instructionsUntilInterrupt();
+	    int executed = 0;
+
+	    try {
+		while (executed < maxInstructions) {
+		    inst.run();
+		    executed++;
+		}
+	    }
+	    catch (MipsException e) {
+		// the faulting instruction is charged by tick() below
+		chargeInstructions(executed);
+
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    chargeInstructions(executed);
+	}
+    }
+
+    /**
+     * Return the number of user instructions that can run before the next
+     * pending interrupt is due. The last of them is the one whose tick
+     * reaches the interrupt.
+     *
+     * @return	the number of instructions, always at least 1.
+     */
+    private int instructionsUntilInterrupt() {
+	long ticksLeft = privilege.interrupt.nextInterruptTime() -
+	    privilege.stats.totalTicks;
+	Lib.assertTrue(ticksLeft > 0);
+
+	return (int) Math.min((ticksLeft + Stats.UserTick - 1) / Stats.UserTick,
+			      Integer.MAX_VALUE);
+    }
+
+    /**
+     * Advance simulated time for a batch of completed user instructions,
+     * taking any interrupt that has become due.
+     *
+     * @param	executed	the number of instructions completed.
+     */
+    private void chargeInstructions(int executed) {
+	if (executed > 0) {
+	    privilege.stats.numInstructions += executed;
+	    privilege.interrupt.tickUser(executed);
+	}
+    }
+
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * <p>
+     * Each block is looked up by the physical address of its first
+     * instruction, and is run as a unit up to the next pending interrupt.
+     * Simulated time is then advanced for all the instructions that ran, so
+     * interrupts are taken at exactly the same instructions as they would be
+     * by the interpreter.
+     */
+    private void runBlocks() {
+	while (true) {
+	    int maxInstructions = instructionsUntilInterrupt();
+	    int executed = 0;
+	    CompiledBlock compiled = null;
+
+	    try {
+		int pc = registers[regPC];
+		int paddr = translate(pc, 4, false);
+		int ppn = paddr / pageSize;
+
+		Block[] page = blockPages[ppn];
+		if (page == null) {
+		    page = new Block[pageSize/4];
+		    blockPages[ppn] = page;
+		}
+
+		int index = (paddr%pageSize) / 4;
+
+		Block block = page[index];
+		if (block == null) {
+		    block = new Block(paddr);
+		    page[index] = block;
+		}
+
+		Op[] ops = block.ops;
+
+		if (jit && block.compiled == null && !block.uncompilable &&
+		    ++block.executions == jitThreshold)
+		    compileBlock(block, page, ppn);
+
+		// compiled code always runs to the end of its block, so it can
+		// only be used if it starts in sequence and meets no deadline
+		if (block.compiled != null && ops.length <= maxInstructions &&
+		    registers[regNextPC] == pc+4) {
+		    compiled = block.compiled;
+		    executed = compiled.run(registers);
+		}
+		else {
+		    int length = Math.min(ops.length, maxInstructions);
+
+		    while (executed < length) {
+			ops[executed].run();
+			executed++;
+
+			// leave on a taken branch, or if the block's page was
+			// written
+			if (registers[regPC] != pc + executed*4 ||
+			    blockPages[ppn] != page)
+			    break;
+		    }
+		}
+	    }
+	    catch (MipsException e) {
+		if (compiled != null)
+		    executed = compiled.executed;
+
+		// charge the instructions before the faulting one; by
+		// construction none of their ticks can reach an interrupt
+		chargeInstructions(executed);
+
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    chargeInstructions(executed);
+	}
+    }
+
+    /**
+     * Find <tt>Lookup.defineHiddenClass()</tt>, which only exists on Java 15
+     * and later. Without it, blocks are still threaded but never translated.
+     *
+     * @return	<tt>true</tt> if translated blocks can be defined.
+     */
+    private boolean findDefineHiddenClass() {
+	try {
+	    Class<?> optionClass = Class.forName(
+		"java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    hiddenClassOptions = java.lang.reflect.Array.newInstance(optionClass,
+								     0);
+
+	    defineHiddenClass = MethodHandles.publicLookup().findVirtual(
+		MethodHandles.Lookup.class, "defineHiddenClass",
+		MethodType.methodType(MethodHandles.Lookup.class, byte[].class,
+				      boolean.class,
+				      hiddenClassOptions.getClass()))
+		.asFixedArity();
+	    return true;
+	}
+	catch (Exception e) {
+	    Lib.debug(dbgProcessor, "hidden classes unavailable: " + e);
+	    return false;
+	}
+    }
+
+    /**
+     * Translate a hot block to JVM bytecode, and define it as a hidden class
+     * so that the JVM can compile the guest code directly. If anything goes
+     * wrong, the block is left to the threaded engine.
+     *
+     * @param	block	the block to translate.
+     * @param	page	the blocks of the page the block starts on.
+     * @param	ppn	the physical page number of that page.
+     */
+    private void compileBlock(Block block, Block[] page, int ppn) {
+	try {
+	    byte[] bytes = new BlockTranslator(block).translate();
+	    if (bytes == null) {
+		block.uncompilable = true;
+		return;
+	    }
+
+	    MethodHandles.Lookup lookup = (MethodHandles.Lookup)
+		defineHiddenClass.invoke(MethodHandles.lookup(), bytes, true,
+					 hiddenClassOptions);
+	    MethodHandle constructor =
+		lookup.findConstructor(lookup.lookupClass(),
+				       MethodType.methodType(void.class,
+							     Processor.class));
+
+	    CompiledBlock compiled = (CompiledBlock) constructor.invoke(this);
+	    compiled.ops = block.ops;
+	    compiled.page = page;
+	    compiled.ppn = ppn;
+
+	    block.compiled = compiled;
+	    privilege.stats.numCompiledBlocks++;
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgProcessor, "could not translate block: " + e);
+	    block.uncompilable = true;
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -238,6 +494,22 @@ public final class Processor {
 	return mainMemory;
     }
 
+    /**
+     * Discard any decoded instructions cached for the specified physical page.
+     * The processor drops its own cached instructions when it stores to a
+     * page, but it cannot see writes made directly to the array returned by
+     * <tt>getMemory()</tt>. A kernel that loads code into a page that way, or
+     * that frees a page so it can be reused, must call this method first.
+     *
+     * @param	ppn	the physical page that was written or freed.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -405,9 +677,14 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+
+	// any instructions decoded from this page may now be stale
+	decodedPages[paddr/pageSize] = null;
+	blockPages[paddr/pageSize] = null;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
     }
 
     /**
@@ -537,6 +814,14 @@ public final class Processor {
     /** The value to be loaded by the delayed load currently in progress. */
     private int loadValue;
 
+    /**
+     * <tt>true</tt> if an <tt>ll</tt> has run, and nothing has entered the
+     * kernel since, so an <tt>sc</tt> to <tt>linkAddress</tt> will succeed.
+     */
+    private boolean linked = false;
+    /** The virtual address of the last <tt>ll</tt>. */
+    private int linkAddress;
+
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
     /** Number of TLB entries. */
@@ -556,6 +841,41 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /** <tt>true</tt> if decoded instructions are cached per physical page. */
+    private boolean cacheDecoded;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * offset within the page. A page's array is allocated the first time code
+     * on that page is executed, and dropped when the page is written or
+     * invalidated.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /**
+     * <tt>true</tt> if the interpreter advances simulated time once per run
+     * of instructions up to the next interrupt, rather than once per
+     * instruction.
+     */
+    private boolean batchTicks;
+    /** <tt>true</tt> if user code is run a basic block at a time. */
+    private boolean threaded = false;
+    /**
+     * Basic blocks, indexed like <tt>decodedPages</tt> by the physical address
+     * of their first instruction, and dropped along with it.
+     */
+    private Block[][] blockPages;
+    /** Interprets the instructions that blocks do not specialise. */
+    private Instruction blockInterpreter = new Instruction();
+
+    /** <tt>true</tt> if hot blocks are translated to JVM bytecode. */
+    private boolean jit = false;
+    /** The number of times a block runs before it is translated. */
+    private int jitThreshold;
+    /** <tt>Lookup.defineHiddenClass()</tt>, found at run time. */
+    private MethodHandle defineHiddenClass;
+    /** The options passed to <tt>defineHiddenClass()</tt>. */
+    private Object hiddenClassOptions;
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
@@ -566,6 +886,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    linked = false;
 	}
     }
 
@@ -593,6 +914,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    linked = false;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -616,6 +938,13 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,63 +955,56 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    if (!cacheDecoded) {
+		scratch.decode(readMem(registers[regPC], 4));
+		decoded = scratch;
+		return;
+	    }
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    // the translation still has to happen, for faults and used bits
+	    int paddr = translate(registers[regPC], 4, false);
+
+	    DecodedInstruction[] page = decodedPages[paddr/pageSize];
+	    if (page == null) {
+		page = new DecodedInstruction[pageSize/4];
+		decodedPages[paddr/pageSize] = page;
 	    }
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    int index = (paddr%pageSize) / 4;
+
+	    decoded = page[index];
+	    if (decoded == null) {
+		decoded = new DecodedInstruction();
+		decoded.decode(Lib.bytesToInt(mainMemory, paddr, 4));
+		page[index] = decoded;
+	    }
+	}
+	
+	private void decode() {
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1015,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1005,6 +1322,26 @@ public final class Processor {
 		writeMem(addr&~0x3, 4, (int) dst);
 		break;
 
+	    case Mips.LL:
+		dst = readMem(addr, size);
+
+		linked = true;
+		linkAddress = addr;
+		break;
+
+	    case Mips.SC:
+		// store only if nothing has entered the kernel since the LL
+		if (linked && linkAddress == addr) {
+		    writeMem(addr, size, (int) src2);
+		    dst = 1;
+		}
+		else {
+		    dst = 0;
+		}
+
+		linked = false;
+		break;
+
 	    case Mips.UNIMPL:
 		System.err.println("Warning: encountered unimplemented inst");
 		
@@ -1051,6 +1388,11 @@ public final class Processor {
 		System.out.print("\n");
 	}
     
+	/** The decoded form of the instruction at the current PC. */
+	private DecodedInstruction decoded;
+	/** Decoded instruction storage used when caching is disabled. */
+	private DecodedInstruction scratch = new DecodedInstruction();
+
 	// state used to execute a single instruction
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
@@ -1063,6 +1405,793 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A straight-line run of instructions from one physical page, ending with
+     * a branch or jump and its delay slot, a syscall, an invalid instruction,
+     * or the end of the page.
+     */
+    private class Block {
+	Block(int paddr) {
+	    int pageEnd = (paddr/pageSize + 1) * pageSize;
+	    java.util.ArrayList<Op> list = new java.util.ArrayList<Op>();
+
+	    for (int addr=paddr; addr<pageEnd; addr+=4) {
+		DecodedInstruction inst = new DecodedInstruction();
+		inst.decode(Lib.bytesToInt(mainMemory, addr, 4));
+		list.add(newOp(inst));
+
+		if (Lib.test(Mips.BRANCH, inst.flags)) {
+		    // the delay slot belongs to this block too, if it fits
+		    if (addr+4 < pageEnd) {
+			inst = new DecodedInstruction();
+			inst.decode(Lib.bytesToInt(mainMemory, addr+4, 4));
+			list.add(newOp(inst));
+		    }
+		    break;
+		}
+
+		if (inst.operation == Mips.SYSCALL ||
+		    inst.operation == Mips.UNIMPL ||
+		    inst.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    ops = list.toArray(new Op[list.size()]);
+	}
+
+	Op[] ops;
+
+	/** The number of times this block has run, until it is compiled. */
+	int executions = 0;
+	/** The translation of this block, once it is hot. */
+	CompiledBlock compiled = null;
+	/** <tt>true</tt> if this block could not be translated. */
+	boolean uncompilable = false;
+    }
+
+    /**
+     * Choose an op for a decoded instruction. The common operations get ops
+     * specialised for them; everything else, including anything that can
+     * overflow, goes through the interpreter.
+     */
+    private Op newOp(DecodedInstruction inst) {
+	if (Lib.test(Mips.OVERFLOW, inst.flags))
+	    return new InterpretedOp(inst);
+
+	switch (inst.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.NOR:
+	case Mips.XOR:
+	case Mips.LUI:
+	case Mips.SLT:
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	case Mips.MFLO:
+	case Mips.MFHI:
+	    return new ComputeOp(inst);
+	case Mips.LOAD:
+	    return new LoadOp(inst);
+	case Mips.STORE:
+	    return new StoreOp(inst);
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	case Mips.JUMP:
+	    return new BranchOp(inst);
+	default:
+	    return new InterpretedOp(inst);
+	}
+    }
+
+    /**
+     * One instruction of a basic block. An op has exactly the same effect on
+     * the registers, the pending delayed load, memory and the PC as the
+     * interpreter would have executing the same instruction.
+     */
+    private abstract class Op {
+	abstract void run() throws MipsException;
+    }
+
+    private class InterpretedOp extends Op {
+	InterpretedOp(DecodedInstruction inst) {
+	    this.inst = inst;
+	}
+
+	void run() throws MipsException {
+	    blockInterpreter.run(inst);
+	}
+
+	private DecodedInstruction inst;
+    }
+
+    /** A register-to-register or register-immediate operation. */
+    private class ComputeOp extends Op {
+	ComputeOp(DecodedInstruction inst) {
+	    operation = inst.operation;
+	    rs = inst.rs;
+	    rt = inst.rt;
+	    sh = inst.sh;
+	    imm = inst.imm;
+	    dstReg = inst.dstReg;
+	    shiftByImm = Lib.test(Mips.SRC1SH, inst.flags);
+	    useImm = Lib.test(Mips.SRC2IMM, inst.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+	}
+
+	void run() {
+	    int src2 = useImm ? imm : registers[rt];
+	    int dst;
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = registers[rs] + src2;
+		break;
+	    case Mips.SUB:
+		dst = registers[rs] - src2;
+		break;
+	    case Mips.AND:
+		dst = registers[rs] & src2;
+		break;
+	    case Mips.OR:
+		dst = registers[rs] | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(registers[rs] | src2);
+		break;
+	    case Mips.XOR:
+		dst = registers[rs] ^ src2;
+		break;
+	    case Mips.LUI:
+		dst = imm << 16;
+		break;
+	    case Mips.SLT:
+		if (unsigned)
+		    dst = ((registers[rs]&0xFFFFFFFFL) < (src2&0xFFFFFFFFL))
+			? 1 : 0;
+		else
+		    dst = (registers[rs] < src2) ? 1 : 0;
+		break;
+	    // shifts are done on the sign-extended value, as execute() does
+	    case Mips.SLL:
+		dst = (int) ((long) src2 << (shiftAmount()&0x1F));
+		break;
+	    case Mips.SRA:
+		dst = (int) ((long) src2 >> (shiftAmount()&0x1F));
+		break;
+	    case Mips.SRL:
+		dst = (int) ((long) src2 >>> (shiftAmount()&0x1F));
+		break;
+	    case Mips.MFLO:
+		dst = registers[regLo];
+		break;
+	    case Mips.MFHI:
+		dst = registers[regHi];
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int shiftAmount() {
+	    return shiftByImm ? sh : registers[rs];
+	}
+
+	private int operation, rs, rt, sh, imm, dstReg;
+	private boolean shiftByImm, useImm, unsigned;
+    }
+
+    private class LoadOp extends Op {
+	LoadOp(DecodedInstruction inst) {
+	    rs = inst.rs;
+	    imm = inst.imm;
+	    size = inst.size;
+	    dstReg = inst.dstReg;
+	    unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, imm, size, dstReg;
+	private boolean unsigned;
+    }
+
+    private class StoreOp extends Op {
+	StoreOp(DecodedInstruction inst) {
+	    rs = inst.rs;
+	    rt = inst.rt;
+	    imm = inst.imm;
+	    size = inst.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    finishLoad();
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private int rs, rt, imm, size;
+    }
+
+    /** A conditional branch or a jump, with or without a link. */
+    private class BranchOp extends Op {
+	BranchOp(DecodedInstruction inst) {
+	    operation = inst.operation;
+	    format = inst.format;
+	    rs = inst.rs;
+	    rt = inst.rt;
+	    imm = inst.imm;
+	    target = inst.target;
+	    link = Lib.test(Mips.LINK, inst.flags);
+	    dstReg = Lib.test(Mips.DST, inst.flags) ? inst.dstReg : 0;
+	}
+
+	void run() {
+	    int src1 = registers[rs];
+	    int nextPC = registers[regNextPC]+4;
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == registers[rt]);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != registers[rt]);
+		break;
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;
+	    case Mips.BLTZ:
+		branch = (src1 < 0);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;
+	    case Mips.JUMP:
+		branch = true;
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    int jtarget;
+	    if (format == Mips.RFMT)
+		jtarget = src1;
+	    else if (format == Mips.IFMT)
+		jtarget = registers[regNextPC] + (imm<<2);
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	private int operation, format, rs, rt, imm, target, dstReg;
+	private boolean link;
+    }
+
+    /**
+     * A block translated to JVM bytecode. Translated blocks are defined as
+     * hidden subclasses of this class, whose <tt>run()</tt> method has
+     * exactly the effect of running the block's ops in turn.
+     *
+     * <p>
+     * Generated code calls back into the helpers below for everything that
+     * needs the processor's private state.
+     */
+    private abstract class CompiledBlock {
+	CompiledBlock() {
+	}
+
+	/**
+	 * Run every instruction in the block, unless one of them causes an
+	 * exception or writes the block's own page.
+	 *
+	 * @param	registers	the processor's registers.
+	 * @return	the number of instructions executed.
+	 */
+	abstract int run(int[] registers) throws MipsException;
+
+	final void finishLoad() {
+	    Processor.this.finishLoad();
+	}
+
+	final void load(int vaddr, int size, boolean unsigned, int dstReg)
+	    throws MipsException {
+	    int value = readMem(vaddr, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	}
+
+	final boolean store(int vaddr, int size, int value)
+	    throws MipsException {
+	    writeMem(vaddr, size, value);
+
+	    Processor.this.finishLoad();
+
+	    return blockPages[ppn] != page;
+	}
+
+	final boolean interpret(int index) throws MipsException {
+	    ops[index].run();
+
+	    return blockPages[ppn] != page;
+	}
+
+	/** The index of the instruction that caused an exception. */
+	int executed;
+
+	Op[] ops;
+	Block[] page;
+	int ppn;
+    }
+
+    /**
+     * Translates a block into the bytes of a hidden subclass of
+     * <tt>CompiledBlock</tt>. Computations and branches are emitted inline,
+     * with their register numbers and immediates as constants; memory
+     * accesses go through the helpers, and anything the block runs through
+     * the interpreter is still run that way.
+     */
+    private class BlockTranslator {
+	BlockTranslator(Block block) {
+	    this.block = block;
+	}
+
+	/**
+	 * Translate the block.
+	 *
+	 * @return	the class file, or <tt>null</tt> if the block is too big
+	 *		for the JVM to compile it.
+	 */
+	byte[] translate() {
+	    asm = new ClassAssembler(className, superName);
+
+	    asm.beginMethod(ClassAssembler.ACC_PUBLIC, "<init>",
+			    "(Lnachos/machine/Processor;)V");
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.op(ClassAssembler.INVOKESPECIAL,
+		   asm.methodRef(superName, "<init>",
+				 "(Lnachos/machine/Processor;)V"));
+	    asm.op(ClassAssembler.RETURN);
+	    asm.endMethod(2, 2);
+
+	    asm.beginMethod(0, "run", "([I)I");
+
+	    Op[] ops = block.ops;
+	    for (int i=0; i<ops.length; i++) {
+		if (ops[i] instanceof ComputeOp)
+		    translate((ComputeOp) ops[i]);
+		else if (ops[i] instanceof LoadOp)
+		    translate((LoadOp) ops[i], i);
+		else if (ops[i] instanceof StoreOp)
+		    translate((StoreOp) ops[i], i);
+		else if (ops[i] instanceof BranchOp)
+		    translate((BranchOp) ops[i]);
+		else
+		    interpret(i);
+	    }
+
+	    asm.pushInt(ops.length);
+	    asm.op(ClassAssembler.IRETURN);
+
+	    if (asm.codeSize() > maxCodeSize)
+		return null;
+
+	    asm.endMethod(8, 3);
+
+	    return asm.toByteArray();
+	}
+
+	private void translate(ComputeOp op) {
+	    switch (op.operation) {
+	    case Mips.ADD:
+		compute(op, ClassAssembler.IADD);
+		break;
+	    case Mips.SUB:
+		compute(op, ClassAssembler.ISUB);
+		break;
+	    case Mips.AND:
+		compute(op, ClassAssembler.IAND);
+		break;
+	    case Mips.OR:
+		compute(op, ClassAssembler.IOR);
+		break;
+	    case Mips.XOR:
+		compute(op, ClassAssembler.IXOR);
+		break;
+	    case Mips.NOR:
+		compute(op, ClassAssembler.IOR);
+		asm.pushInt(-1);
+		asm.op(ClassAssembler.IXOR);
+		break;
+	    case Mips.LUI:
+		asm.pushInt(op.imm << 16);
+		break;
+	    case Mips.SLT:
+		int bias = op.unsigned ? Integer.MIN_VALUE : 0;
+		readRegister(op.rs);
+		if (bias != 0) {
+		    asm.pushInt(bias);
+		    asm.op(ClassAssembler.IXOR);
+		}
+		readSrc2(op);
+		if (bias != 0) {
+		    asm.pushInt(bias);
+		    asm.op(ClassAssembler.IXOR);
+		}
+
+		int less = asm.newLabel(), done = asm.newLabel();
+		asm.branch(ClassAssembler.IF_ICMPLT, less);
+		asm.pushInt(0);
+		asm.branch(ClassAssembler.GOTO, done);
+		asm.bind(less);
+		asm.pushInt(1);
+		asm.bind(done);
+		break;
+	    // the interpreter shifts the sign-extended value as a long
+	    case Mips.SLL:
+		readSrc2(op);
+		readShiftAmount(op);
+		asm.op(ClassAssembler.ISHL);
+		break;
+	    case Mips.SRA:
+		readSrc2(op);
+		readShiftAmount(op);
+		asm.op(ClassAssembler.ISHR);
+		break;
+	    case Mips.SRL:
+		readSrc2(op);
+		asm.op(ClassAssembler.I2L);
+		readShiftAmount(op);
+		asm.op(ClassAssembler.LUSHR);
+		asm.op(ClassAssembler.L2I);
+		break;
+	    case Mips.MFLO:
+		readRegister(regLo);
+		break;
+	    case Mips.MFHI:
+		readRegister(regHi);
+		break;
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    asm.local(ClassAssembler.ISTORE, 2);
+	    finishLoad();
+
+	    if (op.dstReg != 0) {
+		asm.local(ClassAssembler.ALOAD, 1);
+		asm.pushInt(op.dstReg);
+		asm.local(ClassAssembler.ILOAD, 2);
+		asm.op(ClassAssembler.IASTORE);
+	    }
+
+	    advancePC();
+	}
+
+	private void compute(ComputeOp op, int opcode) {
+	    readRegister(op.rs);
+	    readSrc2(op);
+	    asm.op(opcode);
+	}
+
+	private void translate(LoadOp op, int index) {
+	    setExecuted(index);
+
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    readAddress(op.rs, op.imm);
+	    asm.pushInt(op.size);
+	    asm.pushInt(op.unsigned ? 1 : 0);
+	    asm.pushInt(op.dstReg);
+	    asm.op(ClassAssembler.INVOKEVIRTUAL,
+		   asm.methodRef(superName, "load", "(IIZI)V"));
+
+	    advancePC();
+	}
+
+	private void translate(StoreOp op, int index) {
+	    setExecuted(index);
+
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    readAddress(op.rs, op.imm);
+	    asm.pushInt(op.size);
+	    readRegister(op.rt);
+	    asm.op(ClassAssembler.INVOKEVIRTUAL,
+		   asm.methodRef(superName, "store", "(III)Z"));
+	    asm.local(ClassAssembler.ISTORE, 2);
+
+	    advancePC();
+	    returnIfWritten(index+1);
+	}
+
+	private void translate(BranchOp op) {
+	    int notTaken = asm.newLabel(), done = asm.newLabel();
+
+	    switch (op.operation) {
+	    case Mips.BEQ:
+		readRegister(op.rs);
+		readRegister(op.rt);
+		asm.branch(ClassAssembler.IF_ICMPNE, notTaken);
+		break;
+	    case Mips.BNE:
+		readRegister(op.rs);
+		readRegister(op.rt);
+		asm.branch(ClassAssembler.IF_ICMPEQ, notTaken);
+		break;
+	    case Mips.BLEZ:
+		readRegister(op.rs);
+		asm.branch(ClassAssembler.IFGT, notTaken);
+		break;
+	    case Mips.BGTZ:
+		readRegister(op.rs);
+		asm.branch(ClassAssembler.IFLE, notTaken);
+		break;
+	    case Mips.BLTZ:
+		readRegister(op.rs);
+		asm.branch(ClassAssembler.IFGE, notTaken);
+		break;
+	    case Mips.BGEZ:
+		readRegister(op.rs);
+		asm.branch(ClassAssembler.IFLT, notTaken);
+		break;
+	    case Mips.JUMP:
+		break;
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    // the target is computed before the delayed load completes
+	    if (op.format == Mips.RFMT) {
+		readRegister(op.rs);
+	    }
+	    else if (op.format == Mips.IFMT) {
+		readRegister(regNextPC);
+		asm.pushInt(op.imm << 2);
+		asm.op(ClassAssembler.IADD);
+	    }
+	    else {
+		readRegister(regNextPC);
+		asm.pushInt(0xF0000000);
+		asm.op(ClassAssembler.IAND);
+		asm.pushInt(op.target << 2);
+		asm.op(ClassAssembler.IOR);
+	    }
+	    asm.local(ClassAssembler.ISTORE, 2);
+	    asm.branch(ClassAssembler.GOTO, done);
+
+	    asm.bind(notTaken);
+	    readRegister(regNextPC);
+	    asm.pushInt(4);
+	    asm.op(ClassAssembler.IADD);
+	    asm.local(ClassAssembler.ISTORE, 2);
+	    asm.bind(done);
+
+	    finishLoad();
+
+	    if (op.link && op.dstReg != 0) {
+		asm.local(ClassAssembler.ALOAD, 1);
+		asm.pushInt(op.dstReg);
+		readRegister(regNextPC);
+		asm.pushInt(4);
+		asm.op(ClassAssembler.IADD);
+		asm.op(ClassAssembler.IASTORE);
+	    }
+
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.pushInt(regPC);
+	    readRegister(regNextPC);
+	    asm.op(ClassAssembler.IASTORE);
+
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.pushInt(regNextPC);
+	    asm.local(ClassAssembler.ILOAD, 2);
+	    asm.op(ClassAssembler.IASTORE);
+	}
+
+	private void interpret(int index) {
+	    setExecuted(index);
+
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    asm.pushInt(index);
+	    asm.op(ClassAssembler.INVOKEVIRTUAL,
+		   asm.methodRef(superName, "interpret", "(I)Z"));
+	    asm.local(ClassAssembler.ISTORE, 2);
+
+	    returnIfWritten(index+1);
+	}
+
+	private void readRegister(int number) {
+	    // nothing ever writes register 0
+	    if (number == 0) {
+		asm.pushInt(0);
+		return;
+	    }
+
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.pushInt(number);
+	    asm.op(ClassAssembler.IALOAD);
+	}
+
+	private void readSrc2(ComputeOp op) {
+	    if (op.useImm)
+		asm.pushInt(op.imm);
+	    else
+		readRegister(op.rt);
+	}
+
+	private void readShiftAmount(ComputeOp op) {
+	    if (op.shiftByImm) {
+		asm.pushInt(op.sh & 0x1F);
+	    }
+	    else {
+		readRegister(op.rs);
+		asm.pushInt(0x1F);
+		asm.op(ClassAssembler.IAND);
+	    }
+	}
+
+	private void readAddress(int rs, int imm) {
+	    readRegister(rs);
+	    asm.pushInt(imm);
+	    asm.op(ClassAssembler.IADD);
+	}
+
+	private void finishLoad() {
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    asm.op(ClassAssembler.INVOKEVIRTUAL,
+		   asm.methodRef(superName, "finishLoad", "()V"));
+	}
+
+	private void advancePC() {
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.pushInt(regPC);
+	    readRegister(regNextPC);
+	    asm.op(ClassAssembler.IASTORE);
+
+	    asm.local(ClassAssembler.ALOAD, 1);
+	    asm.pushInt(regNextPC);
+	    asm.op(ClassAssembler.DUP2);
+	    asm.op(ClassAssembler.IALOAD);
+	    asm.pushInt(4);
+	    asm.op(ClassAssembler.IADD);
+	    asm.op(ClassAssembler.IASTORE);
+	}
+
+	private void setExecuted(int index) {
+	    asm.local(ClassAssembler.ALOAD, 0);
+	    asm.pushInt(index);
+	    asm.op(ClassAssembler.PUTFIELD,
+		   asm.fieldRef(superName, "executed", "I"));
+	}
+
+	/** Leave the block if the helper result in local 2 is true. */
+	private void returnIfWritten(int executed) {
+	    int notWritten = asm.newLabel();
+
+	    asm.local(ClassAssembler.ILOAD, 2);
+	    asm.branch(ClassAssembler.IFEQ, notWritten);
+	    asm.pushInt(executed);
+	    asm.op(ClassAssembler.IRETURN);
+	    asm.bind(notWritten);
+	}
+
+	private Block block;
+	private ClassAssembler asm;
+
+	private static final String superName =
+	    "nachos/machine/Processor$CompiledBlock";
+	private static final String className =
+	    "nachos/machine/Processor$TranslatedBlock";
+	/** HotSpot will not compile methods bigger than this. */
+	private static final int maxCodeSize = 8000;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on any register. These are computed once per physical
+     * address and reused every time that instruction is executed again.
+     */
+    private static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1118,7 +2247,9 @@ public final class Processor {
 	    STORE	= 38,
 	    SWL		= 39,
 	    SWR		= 40,
-	    MAX		= 40;
+	    LL		= 41,
+	    SC		= 42,
+	    MAX		= 42;
 
 	static final int
 	    IFMT = 1,
@@ -1198,7 +2329,7 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(SWR,   	"swr ta",	IFMT, 0),
 	    new Mips(),
-	    new Mips(UNIMPL,	"ll "),
+	    new Mips(LL,	"ll ta",	IFMT, DELAYEDLOAD|SIZEW),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -1206,7 +2337,7 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(UNIMPL,	"sc "),
+	    new Mips(SC,	"sc ta",	IFMT, DST|SIZEW),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -15,7 +15,10 @@ public final class Stats {
     }
 
     /**
-     * Print out the statistics in this object.
+     * Print out the statistics in this object. Only simulated quantities are
+     * printed, so the output is the same on every run, unless the
+     * <tt>nachos.conf</tt> key <tt>Stats.printThroughput</tt> asks for the
+     * instruction rate as well.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -29,6 +32,34 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	System.out.println("Interrupts: taken " + numInterrupts
+			   + ", timer " + numTimerInterrupts);
+	System.out.println("Deadlines: missed " + numDeadlineMisses);
+	System.out.println("Processor: instructions " + numInstructions
+			   + ", compiled blocks " + numCompiledBlocks);
+
+	if (Config.getBoolean("Stats.printThroughput", false))
+	    System.out.println("Throughput: instructions per second "
+			       + getInstructionsPerSecond());
+    }
+
+    /**
+     * Return the average number of user instructions executed per second of
+     * real time, measured from when the processor first started running user
+     * code. This depends on the host, so unlike everything
+     * <tt>print()</tt> reports, it differs from run to run.
+     *
+     * @return	the instruction throughput, or 0 if no user code has run.
+     */
+    public long getInstructionsPerSecond() {
+	if (processorStartTime == 0)
+	    return 0;
+
+	long elapsed = System.nanoTime() - processorStartTime;
+	if (elapsed <= 0)
+	    return 0;
+
+	return (long) (numInstructions * 1e9 / elapsed);
     }
 
     /**
@@ -61,6 +92,21 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of interrupt handlers that have been run. */
+    public int numInterrupts = 0;
+    /** The total number of timer interrupts that have occurred. */
+    public int numTimerInterrupts = 0;
+    /** The total number of jobs of periodic threads that missed deadlines. */
+    public int numDeadlineMisses = 0;
+    /** The total number of user instructions the processor has completed. */
+    public long numInstructions = 0;
+    /**
+     * The real time, as returned by <tt>System.nanoTime()</tt>, at which the
+     * processor first started running user code, or 0 if it never has.
+     */
+    public long processorStartTime = 0;
+    /** The total number of basic blocks translated to JVM bytecode. */
+    public int numCompiledBlocks = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
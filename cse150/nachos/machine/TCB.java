@@ -6,7 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
@@ -19,6 +23,15 @@ import java.security.PrivilegedAction;
  * Nachos or have no useful effect.
  *
  * <p>
+ * The handoff between JVM threads is selected by the <tt>TCB.backend</tt>
+ * configuration key. <tt>monitor</tt> (the default) waits on a monitor bound
+ * to each TCB, <tt>park</tt> hands off directly with
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, and <tt>virtual</tt>
+ * does the same but runs each TCB after the first in a JVM virtual thread,
+ * when the JVM supports them. Whatever the backend, only one TCB runs at a
+ * time.
+ *
+ * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
  */
@@ -40,6 +53,65 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String backend = Config.getString("TCB.backend", "monitor");
+	if (backend.equals("park")) {
+	    parking = true;
+	}
+	else if (backend.equals("virtual")) {
+	    parking = true;
+	    findVirtualThreads();
+	}
+	else {
+	    Lib.assertTrue(backend.equals("monitor"),
+			   "unknown TCB.backend " + backend);
+	}
+
+	threadLimit = (ofVirtual != null) ? maxVirtualThreads : maxThreads;
+    }
+
+    /**
+     * Find <tt>Thread.ofVirtual()</tt>, which only exists on Java 21 and
+     * later. Without it, the <tt>virtual</tt> backend parks platform threads,
+     * exactly like the <tt>park</tt> backend.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Class<?> ofVirtualClass =
+		Class.forName("java.lang.Thread$Builder$OfVirtual");
+
+	    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	    unstarted = lookup.findVirtual(builderClass, "unstarted",
+					   MethodType.methodType(Thread.class,
+								 Runnable.class));
+	    ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+					  MethodType.methodType(ofVirtualClass));
+	}
+	catch (Exception e) {
+	    Lib.debug(dbgTCB, "virtual threads unavailable: " + e);
+	    ofVirtual = null;
+	}
+    }
+
+    /**
+     * Create the JVM thread that will run a TCB other than the first. This
+     * must be called with privilege.
+     *
+     * @param	target	the closure to run in the new thread.
+     * @return	the new, unstarted thread.
+     */
+    private static Thread newThread(Runnable target) {
+	if (ofVirtual != null) {
+	    try {
+		return (Thread) unstarted.invoke(ofVirtual.invoke(), target);
+	    }
+	    catch (Throwable e) {
+		Lib.debug(dbgTCB, "could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
     }
     
     /**
@@ -66,7 +138,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +166,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -286,11 +358,23 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * When parking, a stale permit or a spurious wakeup just sends us around
+     * the loop again, since only <tt>interrupt()</tt> sets <tt>running</tt>.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
@@ -299,10 +383,23 @@ public final class TCB {
      * and signalling the monitor bound to it. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
+     *
+     * <p>
+     * When parking, the Java thread is latched before <tt>running</tt> is set,
+     * because once it is set the woken TCB may run and be destroyed.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    Thread thread = javaThread;
+	    running = true;
+	    LockSupport.unpark(thread);
+	    return;
+	}
+
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +425,16 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless the TCBs run in virtual threads.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when the TCBs run in virtual threads.
+     */
+    public static final int maxVirtualThreads = 32768;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -364,6 +467,20 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>LockSupport</tt> rather than
+     * with a monitor.
+     */
+    private static boolean parking = false;
+    /** <tt>Thread.ofVirtual()</tt>, or <tt>null</tt> for platform threads. */
+    private static MethodHandle ofVirtual = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static MethodHandle unstarted = null;
+    /** The maximum number of running TCBs for the selected backend. */
+    private static int threadLimit = maxThreads;
+
+    private static final char dbgTCB = 't';
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -387,8 +504,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * It is volatile because the <tt>park</tt> and <tt>virtual</tt> backends
+     * read it without holding a monitor.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not interrupt
+ * periodically. Instead it is a one-shot timer, programmed by the kernel
+ * with <tt>setDeadline()</tt> for the next time it has something to do.
  */
 public final class Timer {
     /**
@@ -37,7 +42,46 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Test whether this timer is a one-shot timer programmed with
+     * <tt>setDeadline()</tt>, rather than a periodic one.
+     *
+     * @return	<tt>true</tt> if this timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program a tickless timer to interrupt at the specified time, replacing
+     * any deadline set before. A deadline that has already passed causes an
+     * interrupt on the next tick.
+     *
+     * @param	time	the time at which to interrupt, or
+     *			<tt>Long.MAX_VALUE</tt> to stop the timer.
+     */
+    public void setDeadline(long time) {
+	Lib.assertTrue(tickless);
+
+	if (time == Long.MAX_VALUE) {
+	    if (deadline != null)
+		deadline.cancel();
+	    return;
+	}
+
+	long when = Math.max(time - getTime(), 1);
+
+	if (deadline == null)
+	    deadline = privilege.interrupt.schedule(when, "timer",
+						    timerInterrupt);
+	else
+	    deadline.reschedule(when);
     }
 
     /**
@@ -60,7 +104,10 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	privilege.stats.numTimerInterrupts++;
+
+	if (!tickless)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -86,4 +133,7 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    private Interrupt.Handle deadline = null;
 }
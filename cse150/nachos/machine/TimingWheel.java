@@ -0,0 +1,288 @@
+package nachos.machine;
+
+import java.util.ArrayList;
+
+/**
+ * A hierarchical timing wheel: a set of entries, each keyed on an absolute
+ * time, that can be added and removed in O(1) and taken out in time order.
+ * The interrupt controller keeps its pending interrupts in one, and the
+ * alarm its sleeping threads.
+ *
+ * <p>
+ * Each level has 64 slots, each covering 64 times as many ticks as a slot on
+ * the level below. An entry goes on the lowest level whose slots are fine
+ * enough to tell its time apart from <tt>base</tt>, the time the wheel was
+ * last advanced to, so every slot on level 0 holds entries due at one single
+ * time. An entry that is already due goes in the slot of <tt>base</tt>.
+ * Entries beyond the top level wait on an overflow list. When <tt>base</tt>
+ * moves into a new slot on a higher level, that slot is cascaded to the
+ * levels below, so each entry is moved at most once per level.
+ *
+ * <p>
+ * Every slot is a list kept in the order entries were added to it, which
+ * preserves the order in which entries due at the same time were added.
+ *
+ * @param	<E>	the type of the entries.
+ */
+public final class TimingWheel<E extends TimingWheel.Entry> {
+    /**
+     * Allocate a new, empty timing wheel, advanced to time 0.
+     */
+    public TimingWheel() {
+    }
+
+    /**
+     * Test whether this wheel holds no entries.
+     *
+     * @return	<tt>true</tt> if this wheel is empty.
+     */
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of entries on this wheel.
+     *
+     * @return	the number of entries.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add an entry to this wheel, due at the specified time. The entry must
+     * not already be on a wheel.
+     *
+     * @param	entry	the entry to add.
+     * @param	time	the time the entry is due.
+     */
+    public void add(E entry, long time) {
+	entry.time = time;
+	place(entry);
+
+	if (size == 0 || (earliest != null && time < earliest.time))
+	    earliest = entry;
+
+	size++;
+    }
+
+    /**
+     * Remove an entry from this wheel. The entry must be on this wheel.
+     *
+     * @param	entry	the entry to remove.
+     */
+    public void remove(E entry) {
+	unlink(entry);
+
+	if (entry == earliest)
+	    earliest = null;
+
+	size--;
+    }
+
+    /**
+     * Return the entry due first, without removing it. Of several entries
+     * due at the same time, this is the one added first.
+     *
+     * @return	the entry due first, or <tt>null</tt> if this wheel is
+     *		empty.
+     */
+    public E first() {
+	if (size == 0)
+	    return null;
+
+	if (earliest != null)
+	    return cast(earliest);
+
+	// each level is entirely later than the levels below it
+	for (int level=0; level<=numLevels; level++) {
+	    if (occupied[level] == 0)
+		continue;
+
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+
+	    // a level 0 slot only holds entries due at one time
+	    earliest = heads[level][slot];
+	    if (level > 0) {
+		for (Entry entry = earliest.next; entry != null;
+		     entry = entry.next) {
+		    if (entry.time < earliest.time)
+			earliest = entry;
+		}
+	    }
+
+	    return cast(earliest);
+	}
+
+	Lib.assertNotReached();
+	return null;
+    }
+
+    /**
+     * Remove and return the entry due first, and advance the wheel to its
+     * time. This wheel must not be empty.
+     *
+     * @return	the entry due first.
+     */
+    public E removeFirst() {
+	Entry entry = first();
+
+	// nothing is due before it, so the wheel can catch up to it
+	advance(entry.time);
+	Lib.assertTrue(entry.level == 0 && heads[0][entry.slot] == entry);
+
+	unlink(entry);
+	earliest = null;
+	size--;
+
+	return cast(entry);
+    }
+
+    /**
+     * Move <tt>base</tt> forward to the specified time, and cascade the
+     * slots it enters. No entry on the wheel may be due before this time.
+     * Advancing as time passes keeps new entries on the lower levels.
+     *
+     * @param	time	the time to advance to.
+     */
+    public void advance(long time) {
+	if (time <= base)
+	    return;
+
+	long oldBase = base;
+	base = time;
+
+	if (oldBase >>> (slotBits*numLevels) != time >>> (slotBits*numLevels))
+	    cascade(numLevels, 0);
+
+	for (int level=numLevels-1; level>0; level--) {
+	    if (oldBase >>> (slotBits*level) != time >>> (slotBits*level))
+		cascade(level, slotIndex(time, level));
+	}
+    }
+
+    /**
+     * Return every entry on this wheel, in no particular order.
+     *
+     * @return	a new list of the entries.
+     */
+    public ArrayList<E> entries() {
+	ArrayList<E> all = new ArrayList<E>(size);
+
+	for (int level=0; level<=numLevels; level++) {
+	    for (int slot=0; slot<slotsPerLevel; slot++) {
+		for (Entry entry = heads[level][slot]; entry != null;
+		     entry = entry.next)
+		    all.add(cast(entry));
+	    }
+	}
+
+	return all;
+    }
+
+    /**
+     * An object that can be kept on a timing wheel. Each entry carries its
+     * own links, so it can be on only one wheel at a time.
+     */
+    public static class Entry {
+	/**
+	 * Return the time this entry was last added to a wheel for.
+	 *
+	 * @return	the time this entry is due.
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	/** The time this entry is due. */
+	long time;
+
+	/** The neighbours of this entry in its slot. */
+	private Entry prev, next;
+	/** The level and slot holding this entry. */
+	private int level, slot;
+    }
+
+    private void cascade(int level, int slot) {
+	Entry entry = heads[level][slot];
+
+	heads[level][slot] = tails[level][slot] = null;
+	occupied[level] &= ~(1L << slot);
+
+	while (entry != null) {
+	    Entry next = entry.next;
+	    place(entry);
+	    entry = next;
+	}
+    }
+
+    private void place(Entry entry) {
+	long key = Math.max(entry.time, base);
+	long distance = key ^ base;
+
+	int level = 0;
+	while (level < numLevels && distance >>> (slotBits*(level+1)) != 0)
+	    level++;
+
+	int slot = (level == numLevels) ? 0 : slotIndex(key, level);
+
+	entry.level = level;
+	entry.slot = slot;
+	entry.next = null;
+	entry.prev = tails[level][slot];
+
+	if (entry.prev == null)
+	    heads[level][slot] = entry;
+	else
+	    entry.prev.next = entry;
+
+	tails[level][slot] = entry;
+	occupied[level] |= (1L << slot);
+    }
+
+    private void unlink(Entry entry) {
+	int level = entry.level, slot = entry.slot;
+
+	if (entry.prev == null)
+	    heads[level][slot] = entry.next;
+	else
+	    entry.prev.next = entry.next;
+
+	if (entry.next == null)
+	    tails[level][slot] = entry.prev;
+	else
+	    entry.next.prev = entry.prev;
+
+	entry.prev = entry.next = null;
+
+	if (heads[level][slot] == null)
+	    occupied[level] &= ~(1L << slot);
+    }
+
+    /**
+     * Every entry on this wheel was added as an <tt>E</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    private E cast(Entry entry) {
+	return (E) entry;
+    }
+
+    private static int slotIndex(long time, int level) {
+	return (int) (time >>> (slotBits*level)) & (slotsPerLevel-1);
+    }
+
+    private static final int slotBits = 6;
+    private static final int slotsPerLevel = 1 << slotBits;
+    private static final int numLevels = 4;
+
+    /** The slots of each level, plus the overflow list as one more. */
+    private Entry[][] heads = new Entry[numLevels+1][slotsPerLevel];
+    private Entry[][] tails = new Entry[numLevels+1][slotsPerLevel];
+    /** A bit for each non-empty slot of each level. */
+    private long[] occupied = new long[numLevels+1];
+
+    private long base = 0;
+    private int size = 0;
+    /** The entry due first, or <tt>null</tt> if not yet known. */
+    private Entry earliest = null;
+}
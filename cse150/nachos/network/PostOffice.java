@@ -14,6 +14,13 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each mailbox holds up to <tt>PostOffice.mailboxCapacity</tt> messages, or
+ * any number if that is 0, the default. A message for a full mailbox is
+ * dropped, as if the network had lost it, rather than holding up delivery to
+ * every other port, so a fast sender cannot grow a slow receiver's mailbox
+ * without limit.
  */
 public class PostOffice {
     /**
@@ -24,11 +31,14 @@ public class PostOffice {
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	sendLock = new Lock("PostOffice.sendLock");
+
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 0);
+	Lib.assertTrue(capacity >= 0, "PostOffice.mailboxCapacity negative");
 
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -89,10 +99,38 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].offer(mail))
+		Lib.debug(dbgNet, "mailbox full, dropped mail to port " +
+			  mail.dstPort);
 	}
     }
 
+    /**
+     * Return the most messages the mailbox of the specified port has held at
+     * once.
+     *
+     * @param	port	the port whose mailbox to check.
+     * @return	the high-water mark of the mailbox.
+     */
+    public int getHighWater(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return queues[port].getHighWater();
+    }
+
+    /**
+     * Return the number of messages dropped because the mailbox of the
+     * specified port was full.
+     *
+     * @param	port	the port whose mailbox to check.
+     * @return	the number of messages dropped.
+     */
+    public long getDropped(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return queues[port].getRefused();
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
      * link.
@@ -147,8 +147,10 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can cancel or move the interrupt.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public Interrupt.Handle schedule(long when, String type,
+					 Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +160,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the simulated time at which the earliest pending interrupt is
+	 * due.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long nextInterruptTime();
+
+	/**
+	 * Advance the simulated time past several user instructions at once.
+	 * This has the same effect as calling <tt>tick(false)</tt> once per
+	 * instruction, provided that no interrupt falls due before the last of
+	 * those ticks.
+	 *
+	 * @param	numInstructions	the number of user instructions that
+	 *				were executed.
+	 */
+	public void tickUser(int numInstructions);
     }
 
     /**
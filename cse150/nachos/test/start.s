@@ -67,3 +67,36 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+
+/* -------------------------------------------------------------
+ * cas
+ *	Compare-and-swap on the word at arg1, without entering the
+ *	kernel: if it holds arg2, replace it with arg3. Returns the
+ *	old value of the word in r2.
+ *
+ *	ll and sc are MIPS II instructions, so they are enabled here
+ *	alone. The processor breaks the link on any trap into the
+ *	kernel, so sc fails, and the loop retries, if another thread
+ *	may have run since the ll.
+ * -------------------------------------------------------------
+ */
+
+	.globl	cas
+	.ent	cas
+cas:
+	.set	noreorder
+	.set	mips2
+1:	ll	$2,0($4)
+	nop			/* load delay slot */
+	bne	$2,$5,2f
+	addu	$8,$6,$0	/* branch delay slot */
+	sc	$8,0($4)
+	beq	$8,$0,1b
+	nop
+2:	j	$31
+	nop
+	.set	mips0
+	.set	reorder
+	.end	cas
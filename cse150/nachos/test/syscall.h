@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +259,39 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Atomically compare the word at address with expected, and if they are
+ * equal, replace it with desired. Runs entirely in user mode, using the ll and
+ * sc instructions, so it never enters the kernel.
+ *
+ * Returns the value the word held before, which equals expected exactly when
+ * the word was replaced.
+ */
+int cas(int *address, int expected, int desired);
+
+/**
+ * Atomically check that the word at address still holds expected, and if it
+ * does, sleep until another thread calls futex_wake() on the same word. The
+ * check and the sleep are one step, so a futex_wake() by a thread that has
+ * just changed the word cannot be missed.
+ *
+ * A lock kept in a word is taken and released with cas() alone while it is
+ * free; a thread calls futex_wait() only when it must wait for the lock, and
+ * futex_wake() only when a thread may be waiting.
+ *
+ * Returns 0 once woken, or -1 at once if the word did not hold expected, or if
+ * address is not a valid, word-aligned address.
+ */
+int futex_wait(int *address, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on the word at address.
+ *
+ * Returns the number of threads woken, or -1 if address is not a valid,
+ * word-aligned address.
+ */
+int futex_wake(int *address, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,20 +1,12 @@
 package nachos.threads;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
 import nachos.machine.*;
 
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
  */
-public class Alarm 
-{
-
-    //create waitingQueue of WaitingThreads, ordered through TimeComparator
-    PriorityQueue<ThreadWait> waitingQueue; //initial capacity, order WaitingComparator
-
+public class Alarm {
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -22,34 +14,63 @@ public class Alarm
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-    public Alarm(){
-        waitingQueue = new PriorityQueue<ThreadWait>(10, new TimeCompare());
-        Machine.timer().setInterruptHandler(new Runnable() {
+    public Alarm() {
+	tickless = Machine.timer().isTickless();
+
+	// the running thread started before there was an alarm to time it
+	if (!tickless)
+	    quantumEnd = 0;
+
+	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks), or with a tickless
+     * timer, when the next sleeper is due or the current quantum ends. Wakes
+     * every sleeper that is due, and causes the current thread to yield if
+     * its quantum is over or a thread that woke up should preempt it.
+     *
+     * <p>
+     * A ticking timer can only end a quantum at an interrupt, so it ends it
+     * at the first interrupt that leaves less than one timer interval of it.
+     * A quantum of one interval or less ends at the next interrupt.
      */
-    public void timerInterrupt() 
-    {
-	
-        Machine.interrupt().disable(); //disable
+    public void timerInterrupt() {
+	Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
 
-        //if waitingQueue is empty, and current time is greater than or equal to the first ThreadWaits, wakeUp time,
-        while(!waitingQueue.isEmpty() && (waitingQueue.peek().wakeUp < Machine.timer().getTime()
-            || waitingQueue.peek().wakeUp ==  Machine.timer().getTime())) {
-            waitingQueue.poll().thread.ready(); //pop head
-        }
+	boolean wokenPreempts = false;
+	while (!sleepers.isEmpty() && sleepers.first().getTime() <= time) {
+	    ThreadWait woken = sleepers.removeFirst();
+	    woken.sleeping = false;
+	    woken.thread.ready();
 
-        KThread.currentThread().yield();
+	    if (!wokenPreempts)
+		wokenPreempts = ThreadedKernel.scheduler
+		    .shouldPreempt(woken.thread, KThread.currentThread());
+	}
+	sleepers.advance(time);
 
-        Machine.interrupt().enable(); //enable
+	// a tickless timer only comes back for the next sleeper, or to end
+	// the quantum of the current thread; the next thread's quantum starts
+	// when it runs
+	boolean preempt = (time >= quantumEnd) || wokenPreempts;
 
+	if (tickless) {
+	    if (preempt && !KThread.hasReadyThreads())
+		quantumEnd = Long.MAX_VALUE;
+
+	    programTimer();
+	}
+
+	if (preempt && KThread.hasReadyThreads())
+	    KThread.yield();
+
+	Machine.interrupt().enable();
     }
 
     /**
@@ -66,52 +87,172 @@ public class Alarm
      *
      * @see	nachos.machine.Timer#getTime()
      */
-    public void waitUntil(long x){
+    public void waitUntil(long x) {
+	Machine.interrupt().disable();
 
-        Machine.interrupt().disable(); //disable interrupts
+	sleep(x, false);
 
-	    long wakeTime; 
-        wakeTime =  Machine.timer().getTime() ;
-        wakeTime = wakeTime + x; //calculate wakeTime
+	Machine.interrupt().enable();
+    }
 
-        //pass through wakeTime and current thread as instance variables for a
-        ThreadWait a;
-        a = new ThreadWait(wakeTime, KThread.currentThread());
+    /**
+     * Like <tt>waitUntil()</tt>, but <tt>cancel()</tt> can wake the current
+     * thread before the time is up. Timeouts are built on this: a thread
+     * waiting for something with a timeout sleeps here, and whoever gives it
+     * what it waited for cancels its sleep.
+     *
+     * @param	x	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the thread slept until the time was up, or
+     *		<tt>false</tt> if its sleep was cancelled.
+     */
+    public boolean waitCancellable(long x) {
+	boolean intStatus = Machine.interrupt().disable();
 
-        waitingQueue.add(a); //add a to the waitingQueue 
+	ThreadWait wait = sleep(x, true);
+	boolean timedOut = !wait.cancelled;
 
-        KThread.currentThread().sleep(); //sleep current thread
+	Machine.interrupt().restore(intStatus);
+	return timedOut;
+    }
+
+    /**
+     * Wake a thread sleeping in <tt>waitCancellable()</tt> before its time
+     * is up, making that call return <tt>false</tt>.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was sleeping in
+     *		<tt>waitCancellable()</tt> and is now ready, or <tt>false</tt>
+     *		if it was not.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadWait wait = thread.alarmWait;
+	boolean cancelled = (wait != null && wait.sleeping && wait.cancellable);
+
+	if (cancelled) {
+	    sleepers.remove(wait);
+	    wait.sleeping = false;
+	    wait.cancelled = true;
+	    thread.ready();
 
-        Machine.interrupt().enable(); //enable interrupts
+	    // it may have been the earliest sleeper
+	    if (tickless)
+		programTimer();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return cancelled;
     }
 
-    public class TimeCompare implements Comparator<ThreadWait>{ //for comparing wait times
-    
-        public int compare(ThreadWait a, ThreadWait b)
-        {
-            if(b.wakeUp > a.wakeUp){
-                return -1;
-            }
-            if (b.wakeUp == a.wakeUp){
-                return 0;
-            }
-           
-            return 1;
-        
-        }
+    /**
+     * Put the current thread on the wheel for <i>x</i> ticks and sleep, with
+     * interrupts disabled. Every thread reuses the same record for all its
+     * sleeps.
+     */
+    private ThreadWait sleep(long x, boolean cancellable) {
+	KThread thread = KThread.currentThread();
+
+	ThreadWait wait = thread.alarmWait;
+	if (wait == null) {
+	    wait = new ThreadWait(thread);
+	    thread.alarmWait = wait;
+	}
+
+	wait.cancellable = cancellable;
+	wait.cancelled = false;
+	wait.sleeping = true;
+	sleepers.add(wait, Machine.timer().getTime() + x);
+
+	// it may be the earliest sleeper
+	if (tickless)
+	    programTimer();
+
+	KThread.sleep();
+
+	return wait;
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> whenever a thread joins the ready
+     * queue. With a tickless timer, this starts a preemption quantum for the
+     * current thread if none is running, since more than one thread can now
+     * run.
+     */
+    void threadReady() {
+	if (!tickless || quantumEnd != Long.MAX_VALUE)
+	    return;
+
+	quantumEnd = Machine.timer().getTime() +
+	    ThreadedKernel.scheduler.getQuantum();
+	programTimer();
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt> each time a thread starts
+     * running, after the scheduler has been told. This starts the quantum of
+     * the new thread, whether the last one was preempted, blocked or
+     * yielded, so the quantum is the new thread's own.
+     */
+    void threadRunning() {
+	if (!tickless) {
+	    // end the quantum at the interrupt nearest before its end
+	    quantumEnd = Machine.timer().getTime() +
+		ThreadedKernel.scheduler.getQuantum() - Stats.TimerTicks;
+	    return;
+	}
+
+	if (KThread.hasReadyThreads())
+	    quantumEnd = Machine.timer().getTime() +
+		ThreadedKernel.scheduler.getQuantum();
+	else
+	    quantumEnd = Long.MAX_VALUE;
+
+	programTimer();
     }
 
+    /**
+     * Program a tickless timer for the earlier of the end of the current
+     * quantum and the earliest wake-up time.
+     */
+    private void programTimer() {
+	long deadline = quantumEnd;
 
-    //PriorityQueue of waiting threads
-    public class ThreadWait{
-        long wakeUp; //time to wake up;
-        KThread thread; //thread associated with
+	if (!sleepers.isEmpty())
+	    deadline = Math.min(deadline, sleepers.first().getTime());
+
+	Machine.timer().setDeadline(deadline);
+    }
+
+    /**
+     * A thread's record of its sleeps, kept on the wheel while it sleeps.
+     */
+    static class ThreadWait extends TimingWheel.Entry {
+	ThreadWait(KThread thread) {
+	    this.thread = thread;
+	}
 
-        //initialize with these variables
-        ThreadWait(long timeTowakeUp, KThread threadS){
-            wakeUp = timeTowakeUp;
-            thread = threadS;
-        }
+	KThread thread;
 
+	/** <tt>true</tt> while the thread is on the wheel. */
+	boolean sleeping = false;
+	/** <tt>true</tt> if <tt>cancel()</tt> can wake the thread. */
+	boolean cancellable;
+	/** <tt>true</tt> if <tt>cancel()</tt> woke the thread. */
+	boolean cancelled;
     }
+
+    private boolean tickless;
+    /**
+     * When the current quantum ends, or <tt>Long.MAX_VALUE</tt> if none. With
+     * a ticking timer, this is one timer interval before the end.
+     */
+    private long quantumEnd = Long.MAX_VALUE;
+
+    /**
+     * The sleeping threads, keyed on their wake-up times. Adding and
+     * cancelling a sleeper is O(1), and waking the sleepers due at one time
+     * takes one slot of the wheel.
+     */
+    private TimingWheel<ThreadWait> sleepers = new TimingWheel<ThreadWait>();
 }
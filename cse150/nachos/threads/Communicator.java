@@ -4,6 +4,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+
 /**
  * A <i>communicator</i> allows threads  synchronously exchange 32-bit
  * messages. Multiple threads can be waittoing to <i>speak</i>,
@@ -25,6 +27,26 @@ public class Communicator {
     	speakerReady = false;
     }
 
+    /**
+     * Allocate a new communicator that buffers up to <i>capacity</i> words.
+     * A speaker only waits while the buffer is full, and a listener only
+     * while it is empty, so words are heard in the order they were spoken,
+     * but a speaker no longer waits for a listener to hear its words. A
+     * capacity of 0 gives the same rendezvous as <tt>Communicator()</tt>.
+     *
+     * @param	capacity	the most words to buffer.
+     */
+    public Communicator(int capacity) {
+	this();
+
+	Lib.assertTrue(capacity >= 0);
+	if (capacity > 0) {
+	    buffer = new int[capacity];
+	    notFull = new Condition(lock);
+	    notEmpty = new Condition(lock);
+	}
+    }
+
     /**
      * Wait for a thread to listen through this communicator, and then transfer
      * <i>word</i> to the listener.
@@ -36,6 +58,19 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	if (buffer != null) {
+	    lock.acquire();
+	    while (count == buffer.length)
+		waitNotFull();
+
+	    buffer[(head + count) % buffer.length] = word;
+	    count++;
+
+	    wakeListener();
+	    lock.release();
+	    return;
+	}
+
     	lock.acquire();
 		speaker++;
     	// Check if there is a listener or speaker is ready
@@ -61,6 +96,20 @@ public class Communicator {
      */    
     public int listen() {
 		int word;
+	if (buffer != null) {
+	    lock.acquire();
+	    while (count == 0)
+		waitNotEmpty();
+
+	    word = buffer[head];
+	    head = (head + 1) % buffer.length;
+	    count--;
+
+	    wakeSpeaker();
+	    lock.release();
+	    return word;
+	}
+
     	lock.acquire(); // acquire lock
 		listener++;
 				
@@ -78,6 +127,273 @@ public class Communicator {
     	return word;
     }
     
+    /**
+     * Speak every word of <i>words</i>, in order. With a buffer, as many words
+     * as fit are moved into it under one acquisition of the lock, and this
+     * only waits while the buffer is full. Without one, each word is a
+     * rendezvous of its own, as with <tt>speak(int)</tt>.
+     *
+     * @param	words	the words to transfer.
+     */
+    public void speak(int[] words) {
+	if (buffer == null) {
+	    for (int i=0; i<words.length; i++)
+		speak(words[i]);
+	    return;
+	}
+
+	lock.acquire();
+
+	for (int offset = 0; offset < words.length; ) {
+	    while (count == buffer.length)
+		waitNotFull();
+
+	    int amount = Math.min(words.length - offset, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+
+	    // copy up to the end of the ring, then wrap around to the front
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset + first, buffer, 0, amount - first);
+
+	    offset += amount;
+	    count += amount;
+
+	    wakeListener();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Wait for at least one word, and then move as many words as are ready,
+     * up to the length of <i>words</i>, into <i>words</i>, in the order they
+     * were spoken. Without a buffer, this hears just one word, as with
+     * <tt>listen()</tt>.
+     *
+     * @param	words	the array to fill.
+     * @return	the number of words transferred, which is at least 1 unless
+     *		<i>words</i> is empty.
+     */
+    public int listen(int[] words) {
+	if (words.length == 0)
+	    return 0;
+
+	if (buffer == null) {
+	    words[0] = listen();
+	    return 1;
+	}
+
+	lock.acquire();
+
+	while (count == 0)
+	    waitNotEmpty();
+
+	int amount = Math.min(words.length, count);
+
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, words, 0, first);
+	System.arraycopy(buffer, 0, words, first, amount - first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	wakeSpeaker();
+	lock.release();
+
+	return amount;
+    }
+
+    /*
+     * A thread that changes the buffer wakes one thread waiting on the other
+     * side. Each thread that is woken wakes the next one in turn if there is
+     * still something for it, so the waiting threads are woken one at a time
+     * for as long as they can make progress, without waking them all.
+     */
+
+    private void waitNotFull() {
+	speakersWaiting++;
+	notFull.sleep();
+	speakersWaiting--;
+
+	// pass the wakeup on while there is room
+	if (count < buffer.length)
+	    wakeSpeaker();
+    }
+
+    private void waitNotEmpty() {
+	listenersWaiting++;
+	notEmpty.sleep();
+	listenersWaiting--;
+
+	// pass the wakeup on while there are words
+	if (count > 0)
+	    wakeListener();
+    }
+
+    private void wakeSpeaker() {
+	if (speakersWaiting > 0)
+	    notFull.wake();
+    }
+
+    private void wakeListener() {
+	if (listenersWaiting > 0)
+	    notEmpty.wake();
+    }
+
+    /**
+     * Test if this module is working: a rendezvous, a small buffer that wraps
+     * around, batches larger than the buffer, and several speakers and
+     * listeners sharing one buffer.
+     */
+    public static void selfTest() {
+	final Semaphore done = new Semaphore(0);
+
+	// a rendezvous speaker does not return before its word is heard
+	final Communicator rendezvous = new Communicator(0);
+	final boolean[] spoken = new boolean[1];
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<5; i++)
+			rendezvous.speak(i);
+		    spoken[0] = true;
+		    done.V();
+		}
+	    }).setName("rendezvous speaker").fork();
+
+	for (int i=0; i<5; i++) {
+	    KThread.yield();
+	    Lib.assertTrue(!spoken[0]);
+	    Lib.assertTrue(rendezvous.listen() == i);
+	}
+	done.P();
+
+	// a buffered speaker only waits while the buffer is full
+	final Communicator ring = new Communicator(3);
+	int[] words = new int[4];
+
+	ring.speak(new int[] { 0, 1 });
+	Lib.assertTrue(ring.listen(words) == 2 && words[0] == 0 &&
+		       words[1] == 1);
+
+	// these wrap around the end of the ring
+	ring.speak(new int[] { 2, 3, 4 });
+	Lib.assertTrue(ring.head == 2 && ring.count == 3);
+
+	spoken[0] = false;
+	new KThread(new Runnable() {
+		public void run() {
+		    ring.speak(5);
+		    spoken[0] = true;
+		    done.V();
+		}
+	    }).setName("blocked speaker").fork();
+
+	KThread.yield();
+	Lib.assertTrue(!spoken[0]);
+
+	Lib.assertTrue(ring.listen(words) == 3 && words[0] == 2 &&
+		       words[1] == 3 && words[2] == 4);
+	done.P();
+	Lib.assertTrue(spoken[0] && ring.listen() == 5);
+
+	// a batch larger than the buffer goes through in pieces
+	final int[] batch = new int[20];
+	for (int i=0; i<batch.length; i++)
+	    batch[i] = i;
+
+	new KThread(new Runnable() {
+		public void run() {
+		    ring.speak(batch);
+		    done.V();
+		}
+	    }).setName("batch speaker").fork();
+
+	for (int heard=0; heard<batch.length; ) {
+	    int amount = ring.listen(words);
+	    Lib.assertTrue(amount >= 1 && amount <= 3);
+
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(words[i] == heard++);
+	}
+	done.P();
+
+	multipleTest(new Communicator(2), 3, 10);
+    }
+
+    /**
+     * Run <i>threads</i> speakers and as many listeners on one communicator,
+     * each speaker speaking <i>each</i> words and each listener hearing as
+     * many, some one at a time and some in batches. Every word must be heard
+     * exactly once, and every listener must hear the words of each speaker in
+     * the order they were spoken.
+     */
+    private static void multipleTest(final Communicator communicator,
+				     int threads, final int each) {
+	final Semaphore done = new Semaphore(0);
+	final int[][] heard = new int[threads][each];
+
+	for (int t=0; t<threads; t++) {
+	    final int id = t;
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] words = new int[each];
+			for (int i=0; i<each; i++)
+			    words[i] = id*each + i;
+
+			if (id == 0) {
+			    for (int i=0; i<each; i++)
+				communicator.speak(words[i]);
+			}
+			else {
+			    communicator.speak(words);
+			}
+
+			done.V();
+		    }
+		}).setName("speaker " + t).fork();
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int got=0; got<each; ) {
+			    if (id == 0) {
+				heard[id][got++] = communicator.listen();
+				continue;
+			    }
+
+			    // never take words another listener is owed
+			    int[] words = new int[Math.min(3, each - got)];
+			    int amount = communicator.listen(words);
+			    for (int i=0; i<amount; i++)
+				heard[id][got++] = words[i];
+			}
+
+			done.V();
+		    }
+		}).setName("listener " + t).fork();
+	}
+
+	for (int t=0; t<threads*2; t++)
+	    done.P();
+
+	boolean[] seen = new boolean[threads*each];
+	for (int l=0; l<threads; l++) {
+	    int[] last = new int[threads];
+	    Arrays.fill(last, -1);
+
+	    for (int i=0; i<each; i++) {
+		int word = heard[l][i];
+		Lib.assertTrue(!seen[word]);
+		seen[word] = true;
+
+		Lib.assertTrue(word % each > last[word / each]);
+		last[word / each] = word % each;
+	    }
+	}
+    }
+
     private Lock lock;
     private Condition speakerQueue;
     private Condition listenerQueue;
@@ -87,6 +403,13 @@ public class Communicator {
 	private int listener = 0;
     // Condition variable that would be set in speaker and then tested in listener
     private boolean speakerReady;  
+
+    /** The ring buffer of words, or <tt>null</tt> for a rendezvous. */
+    private int[] buffer = null;
+    /** The index of the oldest word in the buffer, and how many there are. */
+    private int head = 0, count = 0;
+    private Condition notFull, notEmpty;
+    private int speakersWaiting = 0, listenersWaiting = 0;
 }
 
 
@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -9,7 +7,16 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * The sleeping threads are kept in a list linked through their waiter
+ * records, so a timed waiter leaves it in O(1), and <tt>wakeAll()</tt>
+ * detaches the whole list at once and readies every thread in one section
+ * with interrupts disabled.
+ *
+ * <p>
+ * With <i>wait morphing</i>, a woken thread is not readied, only to run and
+ * then wait for the associated lock, which the waker still holds. It is moved
+ * straight onto the lock's wait queue instead, and wakes up holding the lock,
+ * so a <tt>wakeAll()</tt> does not send every waiter stampeding for the lock.
  *
  * @see	nachos.threads.Condition
  */
@@ -23,8 +30,42 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
-    	this.conditionLock = conditionLock;
-    	waitQueue = new LinkedList<KThread>();
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with the specified name.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable in the
+     *				statistics of <tt>LockStats</tt>, or
+     *				<tt>null</tt> to label it with the line that
+     *				first waits for it.
+     */
+    public Condition2(Lock conditionLock, String name) {
+	this(conditionLock, name, false);
+    }
+
+    /**
+     * Allocate a new condition variable with the specified name, choosing
+     * whether woken threads morph into waiters for the associated lock.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable in the
+     *				statistics of <tt>LockStats</tt>, or
+     *				<tt>null</tt> to label it with the line that
+     *				first waits for it.
+     * @param	morph		<tt>true</tt> to move woken threads straight
+     *				onto the wait queue of the associated lock.
+     */
+    public Condition2(Lock conditionLock, String name, boolean morph) {
+	this.conditionLock = conditionLock;
+	this.morph = morph;
+
+	if (ThreadedKernel.lockStats != null)
+	    stats = ThreadedKernel.lockStats.getCounter(this, name);
     }
 
     /**
@@ -37,61 +78,335 @@ public class Condition2 {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
 	
-	conditionLock.release();
 	boolean intStatus = Machine.interrupt().disable();  // Disable Interrupts
-	waitQueue.add(KThread.currentThread());	// Add thread to waitqueue
-	count++;
+	conditionLock.release();  // so no wake() can slip in before we queue
+	Waiter waiter = new Waiter(KThread.currentThread(), false);
+	add(waiter);	// Add thread to waitqueue
+	long since = Machine.timer().getTime();
 	KThread.sleep();  // Puts current thread to sleep
+	recordWait(since);
 	
-	conditionLock.acquire();  // Reacquire Lock
+	if (waiter.morphed)
+	    conditionLock.morphed();  // woken holding the lock
+	else
+	    conditionLock.acquire();  // Reacquire Lock
 	
 	Machine.interrupt().restore(intStatus); // Restore Interrupts
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once <i>ticks</i> clock ticks
+     * have passed without a <tt>wake()</tt>. The thread sleeps on the alarm
+     * instead of polling, and <tt>wake()</tt> cancels that sleep. Either way,
+     * the associated lock is reacquired before this returns. The thread
+     * reacquires it itself even with wait morphing, since it may time out.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	conditionLock.release();
+
+	Waiter waiter = new Waiter(KThread.currentThread(), true);
+	add(waiter);
+
+	long since = Machine.timer().getTime();
+	boolean timedOut = ThreadedKernel.alarm.waitCancellable(ticks);
+	recordWait(since);
+
+	// a waiter whose time ran out may still be queued
+	if (waiter.queued)
+	    remove(waiter);
+
+	conditionLock.acquire();
+
+	Machine.interrupt().restore(intStatus);
+	return !timedOut;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	
+
 	boolean intStatus = Machine.interrupt().disable();
-	
-    if(!waitQueue.isEmpty()) {    	
-   
-    	KThread thread = waitQueue.removeFirst();  // Remove first thread in waitqueue and call to ready()
-    	count--;
-    	thread.ready();
-    }  // End of if loop
-    
-    Machine.interrupt().restore(intStatus);
+
+	// skip timed waiters whose time has already run out
+	while (first != null) {
+	    Waiter waiter = first;
+	    remove(waiter);
+
+	    if (wake(waiter))
+		break;
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
-    
+
     /**
      * Wake up all threads sleeping on this condition variable. The current
      * thread must hold the associated lock.
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	while(!waitQueue.isEmpty())  // Check if Queue is empty
-		wake();	// Wake all sleeping threads
-        System.out.println("HELLO");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// detach the whole wait queue at once
+	Waiter waiter = first;
+	first = last = null;
+	count = 0;
+
+	while (waiter != null) {
+	    Waiter next = waiter.next;
+	    waiter.queued = false;
+	    waiter.prev = waiter.next = null;
+
+	    wake(waiter);
+	    waiter = next;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake a waiter taken off the waitqueue, with interrupts disabled.
+     *
+     * @return	<tt>false</tt> if it was a timed waiter whose time had run
+     *		out, which is already ready.
+     */
+    private boolean wake(Waiter waiter) {
+	if (waiter.timed)
+	    return ThreadedKernel.alarm.cancel(waiter.thread);
+
+	if (morph) {
+	    waiter.morphed = true;
+	    conditionLock.morph(waiter.thread);
+	}
+	else {
+	    waiter.thread.ready();
+	}
+
+	return true;
     }
 
+    /**
+     * Append a waiter to the wait queue.
+     */
+    private void add(Waiter waiter) {
+	waiter.prev = last;
+	if (last == null)
+	    first = waiter;
+	else
+	    last.next = waiter;
+	last = waiter;
+
+	waiter.queued = true;
+	count++;
+    }
+
+    /**
+     * Unlink a waiter from anywhere in the wait queue.
+     */
+    private void remove(Waiter waiter) {
+	if (waiter.prev == null)
+	    first = waiter.next;
+	else
+	    waiter.prev.next = waiter.next;
+
+	if (waiter.next == null)
+	    last = waiter.prev;
+	else
+	    waiter.next.prev = waiter.prev;
+
+	waiter.prev = waiter.next = null;
+	waiter.queued = false;
+	count--;
+    }
+
+    /**
+     * Count a wake-up, and the ticks slept, if keeping statistics.
+     */
+    private void recordWait(long since) {
+	if (stats != null) {
+	    stats.acquired();
+	    stats.waited(KThread.currentThread(),
+			 Machine.timer().getTime() - since);
+	}
+    }
+
+    /**
+     * Return the number of threads sleeping on this condition variable.
+     *
+     * @return	the number of sleeping threads.
+     */
     public int threadCount() {
-    	return count;
-    }
-    
-    //public static class conTest implements Runnable {	
-	  //    public void run() {
-	    //	  System.out.println("Hello From Condition2");
-	          
-	      //}
-	  //}
-    
-    
+	return count;
+    }
+
+    /**
+     * Test if this module is working: <tt>wakeAll()</tt> with and without
+     * wait morphing, <tt>sleepFor()</tt> timing out and being woken early,
+     * and <tt>wake()</tt> skipping a waiter whose time has run out.
+     */
+    public static void selfTest() {
+	wakeAllTest(false);
+	wakeAllTest(true);
+
+	Lock lock = new Lock();
+	Condition2 condition = new Condition2(lock, null, true);
+	Semaphore done = new Semaphore(0);
+
+	// nobody wakes the current thread, so its time runs out
+	lock.acquire();
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!condition.sleepFor(500));
+	Lib.assertTrue(Machine.timer().getTime() - start >= 500);
+	Lib.assertTrue(lock.isHeldByCurrentThread() &&
+		       condition.threadCount() == 0);
+	lock.release();
+
+	// a timed sleeper woken by wake() returns long before its time is up
+	long until = Machine.timer().getTime() + 100000;
+	Sleeper early = new Sleeper(condition, lock, until, done);
+	new KThread(early).setName("early sleeper").fork();
+
+	while (condition.threadCount() < 1)
+	    KThread.yield();
+
+	lock.acquire();
+	condition.wake();
+	lock.release();
+
+	done.P();
+	Lib.assertTrue(early.woken && early.ended < until);
+
+	// the main thread and a timed sleeper are due at the same time, so the
+	// timed sleeper is usually still queued when the main thread runs, and
+	// wake() must pass over it to the next sleeper
+	until = Machine.timer().getTime() + 2000;
+	Sleeper timed = new Sleeper(condition, lock, until, done);
+	Sleeper untimed = new Sleeper(condition, lock, -1, done);
+	new KThread(timed).setName("timed sleeper").fork();
+	new KThread(untimed).setName("untimed sleeper").fork();
+
+	ThreadedKernel.alarm.waitUntil(until - Machine.timer().getTime());
+
+	lock.acquire();
+	condition.wake();
+	lock.release();
+
+	done.P();
+	done.P();
+	Lib.assertTrue(!timed.woken && timed.ended >= until);
+	Lib.assertTrue(untimed.woken && condition.threadCount() == 0);
+    }
+
+    /**
+     * Put three threads to sleep, and check that <tt>wakeAll()</tt> readies
+     * them all, or with wait morphing, queues them all for the lock, which
+     * is then handed to one of them.
+     */
+    private static void wakeAllTest(boolean morph) {
+	Lock lock = new Lock();
+	Condition2 condition = new Condition2(lock, null, morph);
+	Semaphore done = new Semaphore(0);
+
+	Sleeper[] sleepers = new Sleeper[3];
+	for (int i=0; i<sleepers.length; i++) {
+	    sleepers[i] = new Sleeper(condition, lock, -1, done);
+	    new KThread(sleepers[i]).setName("sleeper " + i).fork();
+	}
+
+	// let every other thread block or finish
+	while (condition.threadCount() < sleepers.length ||
+	       KThread.hasReadyThreads())
+	    KThread.yield();
+
+	lock.acquire();
+	condition.wakeAll();
+	Lib.assertTrue(condition.threadCount() == 0);
+	Lib.assertTrue(KThread.hasReadyThreads() == !morph);
+	lock.release();
+	Lib.assertTrue(KThread.hasReadyThreads());
+
+	for (int i=0; i<sleepers.length; i++)
+	    done.P();
+	for (int i=0; i<sleepers.length; i++)
+	    Lib.assertTrue(sleepers[i].woken);
+    }
+
+    /**
+     * A thread that sleeps on a condition variable, until woken, or with a
+     * time to wait until, until woken or its time runs out.
+     */
+    private static class Sleeper implements Runnable {
+	Sleeper(Condition2 condition, Lock lock, long until, Semaphore done) {
+	    this.condition = condition;
+	    this.lock = lock;
+	    this.until = until;
+	    this.done = done;
+	}
+
+	public void run() {
+	    lock.acquire();
+
+	    if (until < 0) {
+		condition.sleep();
+		woken = true;
+	    }
+	    else {
+		woken = condition.sleepFor(until - Machine.timer().getTime());
+	    }
+
+	    ended = Machine.timer().getTime();
+	    Lib.assertTrue(lock.isHeldByCurrentThread());
+	    lock.release();
+
+	    done.V();
+	}
+
+	private Condition2 condition;
+	private Lock lock;
+	private long until;
+	private Semaphore done;
+
+	boolean woken = false;
+	long ended;
+    }
+
+    /**
+     * A thread sleeping on this condition variable.
+     */
+    private static class Waiter {
+	Waiter(KThread thread, boolean timed) {
+	    this.thread = thread;
+	    this.timed = timed;
+	}
+
+	KThread thread;
+	/** <tt>true</tt> if sleeping in <tt>sleepFor()</tt>. */
+	boolean timed;
+	/** <tt>true</tt> while on the wait queue. */
+	boolean queued;
+	/** <tt>true</tt> if moved onto the lock's wait queue. */
+	boolean morphed;
+
+	/** The neighbours of this waiter in the wait queue. */
+	Waiter prev, next;
+    }
+
     private Lock conditionLock;
+    private boolean morph;
     private int count;
-    private LinkedList<KThread> waitQueue;
- 
+    /** The wait queue, first come first served. */
+    private Waiter first = null, last = null;
+    /** The statistics to record into, or <tt>null</tt>. */
+    private LockStats.Counter stats = null;
 }
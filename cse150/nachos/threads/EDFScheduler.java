@@ -0,0 +1,224 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first scheduler. Each queue gives access to the
+ * waiting thread whose current job has the earliest absolute deadline, as
+ * returned by <tt>KThread.getDeadline()</tt>. Threads that are not periodic
+ * have no deadline, and only get access when no periodic thread is waiting,
+ * first come first served among themselves.
+ *
+ * <p>
+ * Periodic threads are admitted only while the total density of the admitted
+ * threads, the budget of each over the smaller of its period and its relative
+ * deadline, is at most 1. When every deadline equals its period, this is the
+ * usual utilisation bound, under which EDF meets every deadline on one CPU;
+ * with shorter deadlines it is a sufficient test.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	ignored. Deadlines are not donated.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * A thread preempts the current thread if its deadline is earlier.
+     */
+    public boolean shouldPreempt(KThread thread, KThread current) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return thread.getDeadline() < current.getDeadline();
+    }
+
+    /**
+     * Admit the specified thread if the density of all periodic threads,
+     * including its new density, stays at most 1.
+     */
+    public boolean setPeriod(KThread thread, long period, long deadline,
+			     long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	EDFState state = getEDFState(thread);
+
+	double density = 0;
+	if (period != 0)
+	    density = (double) budget / Math.min(period, deadline);
+
+	double newLoad = load - state.density + density;
+	if (newLoad > 1 + 1e-9)
+	    return false;
+
+	load = Math.max(newLoad, 0);
+	state.density = density;
+	return true;
+    }
+
+    /**
+     * Return the total density of the admitted periodic threads.
+     *
+     * @return	the total density, at most 1.
+     */
+    public double getLoad() {
+	return load;
+    }
+
+    /**
+     * Test if this module is working: admission control on a private
+     * scheduler, and the order and preemption of threads by deadline.
+     */
+    public static void selfTest() {
+	EDFScheduler scheduler = new EDFScheduler();
+	KThread a = new KThread(), b = new KThread(), c = new KThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// densities of 0.5 and 0.4 fit, another 0.2 does not
+	Lib.assertTrue(scheduler.setPeriod(a, 1000, 1000, 500));
+	Lib.assertTrue(scheduler.setPeriod(b, 1000, 500, 200));
+	Lib.assertTrue(!scheduler.setPeriod(c, 1000, 1000, 200));
+
+	// until a thread gives its share back
+	scheduler.setPeriod(a, 0, 0, 0);
+	Lib.assertTrue(scheduler.setPeriod(c, 1000, 1000, 200));
+	Lib.assertTrue(Math.abs(scheduler.getLoad() - 0.6) < 1e-9);
+
+	Machine.interrupt().restore(intStatus);
+
+	// released together, due in the order b, c, a
+	Lib.assertTrue(a.setPeriod(1000000, 3000, 1) &&
+		       b.setPeriod(1000000, 1000, 1) &&
+		       c.setPeriod(1000000, 2000, 1));
+	KThread d = new KThread();
+
+	intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(scheduler.shouldPreempt(b, a) &&
+		       !scheduler.shouldPreempt(a, b));
+	Lib.assertTrue(scheduler.shouldPreempt(a, d) &&
+		       !scheduler.shouldPreempt(d, a));
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(d);
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	queue.waitForAccess(c);
+
+	Lib.assertTrue(queue.nextThread() == b);
+	Lib.assertTrue(queue.nextThread() == c);
+	Lib.assertTrue(queue.nextThread() == a);
+	Lib.assertTrue(queue.nextThread() == d);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	a.setPeriod(0, 0, 0);
+	b.setPeriod(0, 0, 0);
+	c.setPeriod(0, 0, 0);
+    }
+
+    /**
+     * Return the EDF state of the specified thread.
+     *
+     * @param	thread	the thread whose EDF state to return.
+     * @return	the EDF state of the specified thread.
+     */
+    protected EDFState getEDFState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new EDFState();
+
+	return (EDFState) thread.schedulingState;
+    }
+
+    /**
+     * Orders waiters by deadline, and then first come first served.
+     */
+    private static class WaiterCompare implements Comparator<Waiter> {
+	public int compare(Waiter a, Waiter b) {
+	    if (a.deadline != b.deadline)
+		return (a.deadline < b.deadline) ? -1 : 1;
+	    else if (a.sequence != b.sequence)
+		return (a.sequence < b.sequence) ? -1 : 1;
+	    else
+		return 0;
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> ordered by deadline. A waiting thread keeps the
+     * deadline it had when it started waiting, which only the thread itself
+     * can change, and only while it runs.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waiters.add(new Waiter(thread, thread.getDeadline(), sequence++));
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Waiter waiter = waiters.pollFirst();
+	    return (waiter == null) ? null : waiter.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Waiter waiter : waiters) {
+		System.out.print(" " + waiter.thread);
+		if (waiter.deadline != Long.MAX_VALUE)
+		    System.out.print("(" + waiter.deadline + ")");
+	    }
+	    System.out.println();
+	}
+
+	private TreeSet<Waiter> waiters = new TreeSet<Waiter>(new WaiterCompare());
+	private long sequence = 0;
+    }
+
+    /**
+     * A thread's place in one deadline queue.
+     */
+    private static class Waiter {
+	Waiter(KThread thread, long deadline, long sequence) {
+	    this.thread = thread;
+	    this.deadline = deadline;
+	    this.sequence = sequence;
+	}
+
+	KThread thread;
+	long deadline;
+	long sequence;
+    }
+
+    /**
+     * The scheduling state of a thread: the share of the CPU it reserved.
+     */
+    protected static class EDFState {
+	/** The density admitted for the thread, or 0 if it is aperiodic. */
+	protected double density = 0;
+    }
+
+    /** The total density of the admitted periodic threads. */
+    private double load = 0;
+}
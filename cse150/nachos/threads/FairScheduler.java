@@ -0,0 +1,423 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the CPU fairly among threads, in proportion to
+ * their weights, by tracking the virtual runtime of every thread.
+ *
+ * <p>
+ * Every thread has a priority, in the same range as that of a
+ * <tt>PriorityScheduler</tt>, and the priority picks its weight. Each time a
+ * thread stops running, it is charged the ticks it ran, divided by its
+ * weight, in virtual runtime. Each queue gives access to the waiting thread
+ * with the least virtual runtime, so over time every thread gets CPU time in
+ * proportion to its weight. The waiting threads of a queue are kept in a
+ * balanced tree ordered by virtual runtime, so that choosing the next thread
+ * takes O(log n).
+ *
+ * <p>
+ * A thread that blocks does not run, so it falls behind the threads that do.
+ * When it becomes ready again, it is moved up to no less than half a quantum
+ * behind the least virtual runtime of the ready threads, so that threads
+ * cannot save up CPU time by sleeping, and new threads start level with the
+ * ready threads.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Weights are not donated.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getFairState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getFairState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Return the current thread's share of a scheduling period of
+     * <tt>latencyQuanta</tt> quanta, in proportion to its weight among the
+     * ready threads, but no less than a quarter of a quantum. When many
+     * threads are ready, each runs for a short time, so that all of them run
+     * within about one period.
+     *
+     * @return	the preemption quantum, in ticks.
+     */
+    public long getQuantum() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	long quantum = super.getQuantum();
+
+	if (readyQueue != null) {
+	    long weight = getFairState(KThread.currentThread()).getWeight();
+	    long slice = latencyQuanta * quantum * weight /
+		(readyQueue.load + weight);
+
+	    quantum = Math.max(slice, quantum/4);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return quantum;
+    }
+
+    /**
+     * Charge the thread that just stopped running for the ticks it ran, and
+     * start timing the thread that is now running.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	if (running != null)
+	    running.charge(time);
+
+	running = getFairState(thread);
+	running.startRunning(time);
+    }
+
+    /**
+     * Test if this module is working, on a private scheduler: two ready
+     * threads share the CPU in proportion to their weights, and a thread
+     * that slept long does not bank its share.
+     */
+    public static void selfTest() {
+	FairScheduler scheduler = new FairScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	FairState a = scheduler.getFairState(new KThread());
+	FairState b = scheduler.getFairState(new KThread());
+	b.setPriority(4);
+
+	ThreadQueue ready = scheduler.newThreadQueue(false);
+	ready.waitForAccess(a.thread);
+	ready.waitForAccess(b.thread);
+
+	// run whichever thread is dequeued for a tenth of a quantum
+	long slice = Stats.TimerTicks/10, time = 0, ranB = 0;
+	for (int i=0; i<2000; i++) {
+	    FairState state = scheduler.getFairState(ready.nextThread());
+	    state.startRunning(time);
+	    time += slice;
+	    state.charge(time);
+	    if (state == b)
+		ranB += slice;
+	    ready.waitForAccess(state.thread);
+	}
+
+	double share = (double) ranB / time;
+	double expected = (double) b.getWeight() / (a.getWeight() + b.getWeight());
+	Lib.assertTrue(Math.abs(share - expected) < 0.01,
+		       "weight share " + expected + " ran " + share);
+
+	// a thread that has not run since the start only gets a little credit
+	FairState c = scheduler.getFairState(new KThread());
+	c.vruntime = 0;
+	ready.waitForAccess(c.thread);
+	Lib.assertTrue(c.vruntime == scheduler.minVruntime -
+		       scheduler.sleeperCredit);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * The weight of each priority. A thread gets about 25% more CPU time than
+     * a ready thread one priority below it, as with the nice levels of Linux.
+     */
+    private static final int[] weights = {
+	820, 1024, 1277, 1586, 1991, 2501, 3121, 3906
+    };
+
+    /** Virtual runtime is kept in 1/1024ths of a tick at the default weight. */
+    private static final int vruntimeShift = 10;
+
+    /** The scheduling period, in quanta. */
+    private static final int latencyQuanta = 4;
+
+    /**
+     * Return the fair state of the specified thread.
+     *
+     * @param	thread	the thread whose fair state to return.
+     * @return	the fair state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairState(thread);
+
+	return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * Orders waiters by virtual runtime, and then first come first served.
+     */
+    private static class WaiterCompare implements Comparator<Waiter> {
+	public int compare(Waiter a, Waiter b) {
+	    if (a.vruntime != b.vruntime)
+		return (a.vruntime < b.vruntime) ? -1 : 1;
+	    else if (a.sequence != b.sequence)
+		return (a.sequence < b.sequence) ? -1 : 1;
+	    else
+		return 0;
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that gives access to the waiting thread with the
+     * least virtual runtime. Its waiters are kept in a red-black tree, keyed
+     * by the virtual runtime of their thread when it started waiting, which
+     * cannot change while the thread waits, since it does not run.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = getFairState(thread);
+
+	    if (state == running) {
+		// bring the running thread's virtual runtime up to date
+		state.charge(Machine.timer().getTime());
+	    }
+	    else if (this == readyQueue) {
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - sleeperCredit);
+	    }
+
+	    Waiter waiter = new Waiter(state, this);
+	    waiter.vruntime = state.vruntime;
+	    waiter.sequence = sequence++;
+	    state.waiting.add(waiter);
+
+	    waiters.add(waiter);
+	    load += state.getWeight();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Waiter waiter = waiters.pollFirst();
+	    if (waiter == null)
+		return null;
+
+	    FairState state = waiter.state;
+	    state.waiting.remove(waiter);
+	    load -= state.getWeight();
+
+	    // remember where running threads come from
+	    state.dequeuedFrom = this;
+
+	    return state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Waiter waiter : waiters)
+		System.out.print(" " + waiter.state.thread + "(" +
+				 waiter.vruntime + ")");
+	    System.out.println();
+	}
+
+	/** The total weight of the waiting threads. */
+	long load = 0;
+
+	private TreeSet<Waiter> waiters = new TreeSet<Waiter>(new WaiterCompare());
+	private long sequence = 0;
+    }
+
+    /**
+     * A thread's place in one fair queue.
+     */
+    private static class Waiter {
+	Waiter(FairState state, FairQueue queue) {
+	    this.state = state;
+	    this.queue = queue;
+	}
+
+	FairState state;
+	FairQueue queue;
+	long vruntime;
+	long sequence;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, and the virtual runtime
+     * it has used.
+     */
+    protected class FairState {
+	/**
+	 * Allocate a new <tt>FairState</tt> object and associate it with the
+	 * specified thread. The thread starts level with the ready threads.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FairState(KThread thread) {
+	    this.thread = thread;
+	    this.vruntime = minVruntime;
+	}
+
+	/**
+	 * Return the weight of the associated thread.
+	 *
+	 * @return	the weight of the associated thread.
+	 */
+	public int getWeight() {
+	    return weights[priority];
+	}
+
+	/**
+	 * Set the priority of the associated thread, and with it its weight.
+	 *
+	 * @param	priority	the new priority.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    // charge the ticks run so far at the old weight
+	    if (this == running)
+		charge(Machine.timer().getTime());
+
+	    for (Waiter waiter : waiting)
+		waiter.queue.load += weights[priority] - getWeight();
+
+	    this.priority = priority;
+	}
+
+	/**
+	 * Called when the associated thread starts running.
+	 */
+	void startRunning(long time) {
+	    if (dequeuedFrom != null) {
+		readyQueue = dequeuedFrom;
+		dequeuedFrom = null;
+
+		// the ready thread with the least virtual runtime was chosen
+		minVruntime = Math.max(minVruntime, vruntime);
+	    }
+
+	    runningSince = time;
+	}
+
+	/**
+	 * Charge the associated thread for the ticks it has run since it was
+	 * last charged, divided by its weight.
+	 */
+	void charge(long time) {
+	    long delta = time - runningSince;
+	    runningSince = time;
+
+	    vruntime += (delta << vruntimeShift) * weights[priorityDefault] /
+		getWeight();
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime;
+
+	private long runningSince = 0;
+
+	/** The queue the thread was last dequeued from, until it runs. */
+	FairQueue dequeuedFrom = null;
+	/** This thread's place in each queue it waits in. */
+	LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+    }
+
+    /**
+     * The most virtual runtime a woken thread may be behind the ready
+     * threads: half a quantum, at the default weight.
+     */
+    private final long sleeperCredit =
+	((long) Stats.TimerTicks << vruntimeShift) / 2;
+
+    /**
+     * The least virtual runtime of the ready threads, as of the last context
+     * switch. Never decreases.
+     */
+    private long minVruntime = 0;
+
+    /** The queue running threads are dequeued from. */
+    private FairQueue readyQueue = null;
+
+    /** The thread that is running, as far as the scheduler knows. */
+    private FairState running = null;
+}
@@ -190,6 +190,10 @@ public class KThread {
 
 	Machine.autoGrader().finishingCurrentThread();
 
+	// give up the CPU time reserved for a periodic thread
+	if (currentThread.period != 0)
+	    ThreadedKernel.scheduler.setPeriod(currentThread, 0, 0, 0);
+
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
@@ -257,6 +261,10 @@ public class KThread {
 	if (currentThread.status != statusFinished)
 	    currentThread.status = statusBlocked;
 
+	if (ThreadedKernel.schedulerStats != null)
+	    ThreadedKernel.schedulerStats.sleepingThread(currentThread,
+							 currentThread.status == statusFinished);
+
 	runNextThread();
     }
 
@@ -271,12 +279,31 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+
+	    if (ThreadedKernel.schedulerStats != null)
+		ThreadedKernel.schedulerStats.readyThread(this);
+
+	    // a yielding thread is not a new contender for the CPU
+	    if (this != currentThread && ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Test whether any thread other than the current thread and the idle
+     * thread is ready to run.
+     *
+     * @return	<tt>true</tt> if the ready queue is not empty.
+     */
+    public static boolean hasReadyThreads() {
+	return numReady > 0;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -299,8 +326,8 @@ public class KThread {
         /**this checks the thread is trying to join itself */
         Lib.assertTrue(this != currentThread);
         
-        /**the joiningFila thread is working with whatever the current thread is */
-        joiningFila.acquire(currentThread);
+        /**this thread owns its joiningFila, so joiners donate priority to it */
+        joiningFila.acquire(this);
         joiningFila.waitForAccess(currentThread);
 
 
@@ -312,6 +339,85 @@ public class KThread {
 	
     }
 
+    /**
+     * Make this thread periodic. From now on, a job of this thread is released
+     * every <i>period</i> ticks, and must be finished, by calling
+     * <tt>waitForNextPeriod()</tt>, within <i>deadline</i> ticks of its
+     * release, or it counts as a missed deadline. <i>budget</i> is the most
+     * ticks a job may need, which the scheduler uses to decide whether it can
+     * meet the deadlines of all its periodic threads. A <i>period</i> of 0
+     * makes this thread aperiodic again.
+     *
+     * <p>
+     * The first job is released now. A thread that is not yet forked, or the
+     * current thread, may be made periodic.
+     *
+     * @param	period		the ticks between releases, or 0.
+     * @param	deadline	the ticks from each release to its deadline.
+     * @param	budget		the most ticks each job may run.
+     * @return	<tt>true</tt> if the scheduler admitted this thread, or
+     *		<tt>false</tt> if it cannot meet the deadline, in which case
+     *		this thread is left as it was.
+     */
+    public boolean setPeriod(long period, long deadline, long budget) {
+	Lib.assertTrue(status == statusNew || this == currentThread);
+	Lib.assertTrue(period == 0 ||
+		       (period > 0 && deadline > 0 && budget > 0));
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted =
+	    ThreadedKernel.scheduler.setPeriod(this, period, deadline, budget);
+
+	if (admitted) {
+	    this.period = period;
+	    this.relativeDeadline = deadline;
+
+	    release = Machine.timer().getTime();
+	    absoluteDeadline = (period == 0) ? Long.MAX_VALUE : release+deadline;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
+    /**
+     * Finish the current job of the current thread, which must be periodic,
+     * and wait for the release of its next job. If the current job finished
+     * after its deadline, count a missed deadline. If the next job is already
+     * due, yield, since an earlier deadline may be waiting.
+     */
+    public static void waitForNextPeriod() {
+	Lib.assertTrue(currentThread.period > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+	if (time > currentThread.absoluteDeadline)
+	    Machine.deadlineMissed();
+
+	currentThread.release += currentThread.period;
+	currentThread.absoluteDeadline =
+	    currentThread.release + currentThread.relativeDeadline;
+
+	if (currentThread.release > time)
+	    ThreadedKernel.alarm.waitUntil(currentThread.release - time);
+	else
+	    KThread.yield();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the absolute deadline of this thread's current job, in ticks.
+     *
+     * @return	the deadline, or <tt>Long.MAX_VALUE</tt> if this thread is
+     *		not periodic.
+     */
+    public long getDeadline() {
+	return absoluteDeadline;
+    }
+
     /**
      * Create the idle thread. Whenever there are no threads ready to be run,
      * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -319,17 +425,31 @@ public class KThread {
      * all other threads are blocked.
      *
      * <p>
+     * Rather than tick through the time until some thread can run again, the
+     * idle thread lets the machine fast-forward to the next interrupt.
+     *
+     * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    // nothing can run before the next interrupt, so skip to it
+		    if (!hasReadyThreads())
+			Machine.interrupt().idle();
+
+		    KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
 	Machine.autoGrader().setIdleThread(idleThread);
+	if (ThreadedKernel.schedulerStats != null)
+	    ThreadedKernel.schedulerStats.setIdleThread(idleThread);
 	
 	idleThread.fork();
     }
@@ -342,6 +462,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
@@ -395,6 +517,11 @@ public class KThread {
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.runningThread(this);
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.threadRunning();
+	if (ThreadedKernel.schedulerStats != null)
+	    ThreadedKernel.schedulerStats.runningThread(this);
 	
 	status = statusRunning;
 
@@ -474,10 +601,22 @@ public class KThread {
     private static int numCreated = 0;
     
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
     
     //CREATE THREAD QUEUE 
     private ThreadQueue joiningFila = null;
+
+    /** This thread's record of its sleeps in <tt>Alarm</tt>, reused. */
+    Alarm.ThreadWait alarmWait = null;
+
+    /** The ticks between releases of a periodic thread, or 0. */
+    private long period = 0;
+    private long relativeDeadline = 0;
+    /** The release time and deadline of the current job, in ticks. */
+    private long release = 0;
+    private long absoluteDeadline = Long.MAX_VALUE;
 }
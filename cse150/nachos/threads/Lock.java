@@ -24,6 +24,20 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with the specified name. The lock will initially
+     * be <i>free</i>.
+     *
+     * @param	name	the name of this lock in the statistics of
+     *			<tt>LockStats</tt>, or <tt>null</tt> to label it
+     *			with the line that first waits for it.
+     */
+    public Lock(String name) {
+	if (ThreadedKernel.lockStats != null)
+	    stats = ThreadedKernel.lockStats.getCounter(this, name);
     }
 
     /**
@@ -37,8 +51,13 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long since = Machine.timer().getTime();
+
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+
+	    if (stats != null)
+		stats.waited(thread, Machine.timer().getTime() - since);
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -47,6 +66,11 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (stats != null) {
+	    stats.acquired();
+	    acquiredAt = Machine.timer().getTime();
+	}
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,12 +82,44 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (stats != null)
+	    stats.released(Machine.timer().getTime() - acquiredAt);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Called by <tt>Condition2</tt> with wait morphing. Make the specified
+     * thread, which is sleeping on a condition variable, wait for this lock
+     * as if it had called <tt>acquire()</tt>, so that it is woken up holding
+     * the lock. The current thread must hold this lock.
+     *
+     * @param	thread	the thread to make wait for this lock.
+     */
+    void morph(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Called by a thread passed to <tt>morph()</tt> once it is woken up
+     * holding this lock, with interrupts disabled, to finish acquiring it.
+     * Its wait counts as a wait on the condition variable, not on the lock.
+     */
+    void morphed() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	if (stats != null) {
+	    stats.acquired();
+	    acquiredAt = Machine.timer().getTime();
+	}
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +130,9 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    /** The statistics this lock records into, or <tt>null</tt>. */
+    private LockStats.Counter stats = null;
+    private long acquiredAt;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
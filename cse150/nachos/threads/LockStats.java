@@ -0,0 +1,355 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Contention statistics for the locks, semaphores and condition variables of
+ * a threaded kernel. If <tt>ThreadedKernel.lockStats</tt> is set, every
+ * <tt>Lock</tt>, <tt>Semaphore</tt> and <tt>Condition2</tt> records how often
+ * it is acquired, how often a thread had to wait for it, and for how many
+ * ticks, and which threads waited longest; a lock also records how long it is
+ * held. The statistics are printed when Nachos exits, and by
+ * <tt>print()</tt> at any time, hottest first.
+ *
+ * <p>
+ * Every primitive records into its own counter, and can be given a name when
+ * it is allocated. A primitive without a name is labelled with the line that
+ * first waited for it, which costs one stack trace, and only for primitives
+ * that are ever waited for. <tt>print()</tt> adds up the primitives of one
+ * kind and label, so the semaphores that <tt>Condition</tt> allocates for
+ * every sleep add up to one entry, and names the hottest primitive of each.
+ * Waits and holds are kept in histograms with a bucket per power of two.
+ *
+ * <p>
+ * The primitives are only weakly referenced here. Once one is garbage
+ * collected, its counter is folded into a total for its label.
+ *
+ * <p>
+ * When <tt>ThreadedKernel.lockStats</tt> is not set, the primitives record
+ * nothing, and only test a field for <tt>null</tt>.
+ */
+public class LockStats {
+    /**
+     * Allocate a new lock statistics object.
+     */
+    public LockStats() {
+    }
+
+    /**
+     * Return the counter a new primitive should record into, its own.
+     *
+     * @param	primitive	the new primitive.
+     * @param	name		the name of the primitive, or <tt>null</tt> to
+     *				label it with the line that first waits for it.
+     * @return	the counter to record into.
+     */
+    Counter getCounter(Object primitive, String name) {
+	reapCounters();
+
+	Counter counter = new Counter(primitive.getClass(), name, ++numCounters);
+	liveCounters.add(new CounterRef(primitive, counter, collected));
+
+	return counter;
+    }
+
+    /**
+     * Fold the counters of the primitives that have been garbage collected
+     * into the totals for their labels.
+     */
+    private void reapCounters() {
+	CounterRef ref;
+	while ((ref = (CounterRef) collected.poll()) != null) {
+	    liveCounters.remove(ref);
+	    getGroup(retired, ref.counter.getLabel()).add(ref.counter);
+	}
+    }
+
+    private static CounterGroup getGroup(LinkedHashMap<String, CounterGroup>
+					 groups, String label) {
+	CounterGroup group = groups.get(label);
+	if (group == null) {
+	    group = new CounterGroup(label);
+	    groups.put(label, group);
+	}
+
+	return group;
+    }
+
+    /**
+     * Print the statistics recorded so far, with up to three of the threads
+     * that waited longest for each kind of primitive.
+     */
+    public void print() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	reapCounters();
+
+	LinkedHashMap<String, CounterGroup> groups =
+	    new LinkedHashMap<String, CounterGroup>();
+	for (CounterGroup group : retired.values())
+	    getGroup(groups, group.label).add(group);
+	for (CounterRef ref : liveCounters)
+	    getGroup(groups, ref.counter.getLabel()).add(ref.counter);
+
+	ArrayList<CounterGroup> list = new ArrayList<CounterGroup>();
+	for (CounterGroup group : groups.values()) {
+	    if (group.total.acquires > 0)
+		list.add(group);
+	}
+
+	Collections.sort(list, new Comparator<CounterGroup>() {
+		public int compare(CounterGroup a, CounterGroup b) {
+		    long wa = a.total.waits.sum, wb = b.total.waits.sum;
+		    return (wa > wb) ? -1 : (wa < wb) ? 1 : 0;
+		}
+	    });
+
+	System.out.println("Lock contention, by total ticks waited:");
+	for (CounterGroup group : list) {
+	    Counter total = group.total;
+
+	    System.out.println("    " + group.label +
+			       ": instances " + group.instances +
+			       ", acquires " + total.acquires +
+			       ", contended " + total.waits.count +
+			       ", waited " + total.waits.sum +
+			       ", mean " +
+			       SchedulerStats.format(total.waits.getMean()) +
+			       ", max " + total.waits.max);
+
+	    if (total.waits.count > 0)
+		System.out.println("        waits by ticks: " + total.waits);
+	    if (total.holds.count > 0)
+		System.out.println("        holds by ticks: " + total.holds +
+				   ", max " + total.holds.max);
+	    if (!total.waiters.isEmpty())
+		System.out.println("        top waiters: " +
+				   total.getTopWaiters(3));
+
+	    Counter hottest = group.hottest;
+	    if (group.instances > 1 && hottest.waits.count > 0)
+		System.out.println("        hottest instance: #" + hottest.id +
+				   ", acquires " + hottest.acquires +
+				   ", contended " + hottest.waits.count +
+				   ", waited " + hottest.waits.sum +
+				   ", max " + hottest.waits.max);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The statistics of one primitive, or the total of several.
+     */
+    static class Counter {
+	Counter(Class<?> kind, String name, int id) {
+	    this.kind = kind;
+	    this.id = id;
+
+	    if (name != null)
+		label = getKindName() + " " + name;
+	}
+
+	/**
+	 * Called when a thread acquires the primitive, or for a condition
+	 * variable, when a thread wakes up.
+	 */
+	void acquired() {
+	    acquires++;
+	}
+
+	/**
+	 * Called when a thread had to wait to acquire the primitive, with
+	 * the ticks it waited. The first wait for a primitive without a name
+	 * labels it with the line that waited.
+	 */
+	void waited(KThread thread, long ticks) {
+	    if (label == null)
+		label = getKindName() + " at " + getSite();
+
+	    waits.add(ticks, 1);
+	    addWaiter(thread.toString(), ticks);
+	}
+
+	/**
+	 * Called when a lock is released, with the ticks it was held.
+	 */
+	void released(long ticks) {
+	    holds.add(ticks, 1);
+	}
+
+	/**
+	 * Add the statistics of another counter to this one.
+	 */
+	void add(Counter counter) {
+	    acquires += counter.acquires;
+	    waits.add(counter.waits);
+	    holds.add(counter.holds);
+
+	    for (Map.Entry<String, Long> entry : counter.waiters.entrySet())
+		addWaiter(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Add ticks to the total of a waiting thread. Once
+	 * <tt>maxWaiters</tt> threads are tracked, a new one takes over the
+	 * entry with the fewest ticks.
+	 */
+	private void addWaiter(String key, long ticks) {
+	    Long total = waiters.get(key);
+
+	    if (total == null && waiters.size() == maxWaiters) {
+		String least = null;
+		for (Map.Entry<String, Long> entry : waiters.entrySet()) {
+		    if (least == null || entry.getValue() < total) {
+			least = entry.getKey();
+			total = entry.getValue();
+		    }
+		}
+		waiters.remove(least);
+	    }
+
+	    waiters.put(key, (total == null) ? ticks : total + ticks);
+	}
+
+	/**
+	 * Return the label of the primitive: its kind, and its name or the
+	 * line that first waited for it.
+	 */
+	String getLabel() {
+	    return (label != null) ? label : getKindName() + " never waited for";
+	}
+
+	private String getKindName() {
+	    String name = kind.getName();
+	    return name.substring(name.lastIndexOf('.')+1);
+	}
+
+	/**
+	 * Return the line that called into the primitive, skipping this
+	 * class, the primitive's own methods, and the accessors javac
+	 * generates for inner classes.
+	 */
+	private String getSite() {
+	    StackTraceElement[] trace = new Throwable().getStackTrace();
+
+	    int i = 0;
+	    while (i < trace.length-1 &&
+		   (trace[i].getClassName().startsWith(LockStats.class.getName()) ||
+		    trace[i].getClassName().equals(kind.getName()) ||
+		    trace[i].getMethodName().startsWith("access$")))
+		i++;
+
+	    String className = trace[i].getClassName();
+	    return className.substring(className.lastIndexOf('.')+1) + "." +
+		trace[i].getMethodName() + ":" + trace[i].getLineNumber();
+	}
+
+	String getTopWaiters(int count) {
+	    ArrayList<Map.Entry<String, Long>> list =
+		new ArrayList<Map.Entry<String, Long>>(waiters.entrySet());
+
+	    Collections.sort(list, new Comparator<Map.Entry<String, Long>>() {
+		    public int compare(Map.Entry<String, Long> a,
+				       Map.Entry<String, Long> b) {
+			return b.getValue().compareTo(a.getValue());
+		    }
+		});
+
+	    StringBuffer buffer = new StringBuffer();
+	    for (int i=0; i<list.size() && i<count; i++) {
+		if (i > 0)
+		    buffer.append(", ");
+		buffer.append(list.get(i).getKey() + " " +
+			      list.get(i).getValue());
+	    }
+
+	    return buffer.toString();
+	}
+
+	/** The class of the primitive. */
+	Class<?> kind;
+	/** The number of the primitive, counting from 1 in allocation order. */
+	int id;
+	/** The label, or <tt>null</tt> until the primitive is waited for. */
+	String label = null;
+	long acquires = 0;
+	SchedulerStats.Histogram waits = new SchedulerStats.Histogram();
+	SchedulerStats.Histogram holds = new SchedulerStats.Histogram();
+	/**
+	 * The total ticks waited by each of the threads that waited longest,
+	 * by name, so that finished threads can be collected.
+	 */
+	HashMap<String, Long> waiters = new HashMap<String, Long>();
+
+	/** The most threads <tt>waiters</tt> tracks. */
+	static final int maxWaiters = 16;
+    }
+
+    /**
+     * The total of the counters with one label, and the counter among them
+     * that waited longest.
+     */
+    private static class CounterGroup {
+	CounterGroup(String label) {
+	    this.label = label;
+	    total = new Counter(Object.class, null, 0);
+	}
+
+	void add(Counter counter) {
+	    instances++;
+	    total.add(counter);
+
+	    if (hottest == null || counter.waits.sum > hottest.waits.sum)
+		hottest = counter;
+	}
+
+	void add(CounterGroup group) {
+	    instances += group.instances;
+	    total.add(group.total);
+
+	    if (hottest == null || group.hottest.waits.sum > hottest.waits.sum)
+		hottest = group.hottest;
+	}
+
+	String label;
+	int instances = 0;
+	Counter total;
+	Counter hottest = null;
+    }
+
+    /**
+     * A weak reference to a primitive, which keeps its counter, so the
+     * counter can be folded into the total for its label once the primitive
+     * is collected.
+     */
+    private static class CounterRef extends WeakReference<Object> {
+	CounterRef(Object primitive, Counter counter,
+		   ReferenceQueue<Object> collected) {
+	    super(primitive, collected);
+	    this.counter = counter;
+	}
+
+	Counter counter;
+    }
+
+    private int numCounters = 0;
+
+    /** The counters of the primitives that may still be in use. */
+    private LinkedHashSet<CounterRef> liveCounters =
+	new LinkedHashSet<CounterRef>();
+    private ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    /** The totals of the primitives that have been collected, by label. */
+    private LinkedHashMap<String, CounterGroup> retired =
+	new LinkedHashMap<String, CounterGroup>();
+}
@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -32,7 +31,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +41,459 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long effective = getLotteryState(thread).effectiveTickets;
+	return (int) Math.min(effective, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		   priority <= ticketsMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets != ticketsMaximum);
+	if (changed)
+	    setPriority(thread, tickets+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets != ticketsMinimum);
+	if (changed)
+	    setPriority(thread, tickets-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Test if this module is working, on a private scheduler: the threads of
+     * a queue win in proportion to their tickets, tickets are transferred
+     * through a chain of queues, and a wait-for cycle does not make them
+     * grow without bound.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	LotteryState a = scheduler.getLotteryState(new KThread());
+	LotteryState b = scheduler.getLotteryState(new KThread());
+	LotteryState c = scheduler.getLotteryState(new KThread());
+	b.setTickets(3);
+
+	// b should win about three draws in four
+	ThreadQueue ready = scheduler.newThreadQueue(false);
+	ready.waitForAccess(a.thread);
+	ready.waitForAccess(b.thread);
+
+	int draws = 4000, wins = 0;
+	for (int i=0; i<draws; i++) {
+	    KThread winner = ready.nextThread();
+	    if (winner == b.thread)
+		wins++;
+	    ready.waitForAccess(winner);
+	}
+	Lib.assertTrue(wins > draws*7/10 && wins < draws*8/10,
+		       "3 of 4 tickets won " + wins + " of " + draws);
+
+	// a holds a lock that b and c wait for
+	LotteryQueue lock = scheduler.new LotteryQueue(true);
+	lock.acquire(a.thread);
+	lock.waitForAccess(b.thread);
+	lock.waitForAccess(c.thread);
+	Lib.assertTrue(a.effectiveTickets == 5);
+
+	// then a waits to join b, which closes a cycle
+	LotteryQueue join = scheduler.new LotteryQueue(true);
+	join.acquire(b.thread);
+	join.waitForAccess(a.thread);
+	Lib.assertTrue(a.effectiveTickets == 10 && b.effectiveTickets == 8);
+
+	// breaking it gives every thread back what it had
+	Lib.assertTrue(join.nextThread() == a.thread);
+	Lib.assertTrue(a.effectiveTickets == 5 && b.effectiveTickets == 3);
+
+	lock.nextThread();
+	lock.nextThread();
+	Lib.assertTrue(lock.nextThread() == null);
+	Lib.assertTrue(a.effectiveTickets == 1 && b.effectiveTickets == 3 &&
+		       c.effectiveTickets == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Every waiting thread occupies a slot of a Fenwick tree over the
+     * effective tickets of the slots, so adding, removing or reweighting a
+     * thread and drawing the winning ticket all take O(log n), and the total
+     * number of tickets, which a donating queue transfers to its owner, is
+     * always at hand. Sums are kept as <tt>long</tt>s, so any number of
+     * threads with <tt>Integer.MAX_VALUE</tt> tickets each cannot overflow
+     * them.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		// nobody takes over, so the owner gives up access
+		setOwner(null);
+		return null;
+	    }
+
+	    LotteryState winner = waiters[draw()].state;
+	    winner.acquire(this);
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot = 1; slot < waiters.length; slot++) {
+		if (waiters[slot] != null)
+		    System.out.print(" " + waiters[slot].state.thread + "(" +
+				     waiters[slot].weight + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads.
+	 */
+	long getTotalTickets() {
+	    return total;
+	}
+
+	/**
+	 * Give a waiting thread a slot, weighted by its effective tickets.
+	 */
+	void add(Waiter waiter) {
+	    if (freeSlots == 0)
+		grow();
+
+	    int slot = freeSlot[--freeSlots];
+	    waiter.slot = slot;
+	    waiter.weight = waiter.state.effectiveTickets;
+	    waiters[slot] = waiter;
+	    size++;
+
+	    update(slot, waiter.weight);
+	}
+
+	/**
+	 * Take a thread's slot away.
+	 */
+	void remove(Waiter waiter) {
+	    int slot = waiter.slot;
+
+	    update(slot, -waiter.weight);
+
+	    waiters[slot] = null;
+	    freeSlot[freeSlots++] = slot;
+	    size--;
+	}
+
+	/**
+	 * Reweight a waiting thread whose effective tickets changed.
+	 */
+	void reweight(Waiter waiter) {
+	    long delta = waiter.state.effectiveTickets - waiter.weight;
+	    waiter.weight = waiter.state.effectiveTickets;
+
+	    update(waiter.slot, delta);
+	}
+
+	/**
+	 * Hand this queue to a new owner, moving its tickets from the old
+	 * owner to the new one.
+	 */
+	void setOwner(LotteryState state) {
+	    if (!transferPriority || state == owner)
+		return;
+
+	    if (owner != null)
+		owner.changeDonation(-donated);
+
+	    owner = state;
+	    donated = 0;
+
+	    if (owner != null)
+		donated = owner.changeDonation(total);
+	}
+
+	/**
+	 * Add <i>delta</i> to the weight of a slot, and pass the change on to
+	 * the owner. The owner is never asked to give back more than it was
+	 * given, which in a wait-for cycle is less than the total.
+	 */
+	private void update(int slot, long delta) {
+	    if (delta == 0)
+		return;
+
+	    for (int i = slot; i < tree.length; i += i & -i)
+		tree[i] += delta;
+	    total += delta;
+
+	    if (transferPriority && owner != null)
+		donated += owner.changeDonation(Math.max(delta, -donated));
+	}
+
+	/**
+	 * Draw a ticket and return the slot holding it, by descending the tree
+	 * to the first slot whose prefix sum exceeds the ticket.
+	 */
+	private int draw() {
+	    long ticket = (long) (Lib.random() * total);
+	    if (ticket >= total)
+		ticket = total-1;
+
+	    int slot = 0;
+	    for (int step = Integer.highestOneBit(tree.length-1); step > 0;
+		 step >>= 1) {
+		if (slot + step < tree.length && tree[slot + step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slot+1;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree in O(n).
+	 */
+	private void grow() {
+	    int oldCapacity = waiters.length-1;
+	    int capacity = Math.max(2*oldCapacity, 8);
+
+	    Waiter[] newWaiters = new Waiter[capacity+1];
+	    System.arraycopy(waiters, 0, newWaiters, 0, waiters.length);
+	    waiters = newWaiters;
+
+	    tree = new long[capacity+1];
+	    for (int i = 1; i <= capacity; i++) {
+		if (waiters[i] != null)
+		    tree[i] += waiters[i].weight;
+
+		int parent = i + (i & -i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    freeSlot = new int[capacity];
+	    freeSlots = 0;
+	    for (int i = capacity; i > oldCapacity; i--)
+		freeSlot[freeSlots++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource, if this queue transfers. */
+	private LotteryState owner = null;
+	/** The tickets this queue has transferred to its owner. */
+	private long donated = 0;
+
+	/** The waiter in each slot, indexed from 1. */
+	private Waiter[] waiters = new Waiter[1];
+	/** The Fenwick tree over the weights of the slots, indexed from 1. */
+	private long[] tree = new long[1];
+	/** The total weight of all slots. */
+	private long total = 0;
+	private int size = 0;
+
+	/** A stack of the slots not in use. */
+	private int[] freeSlot = new int[0];
+	private int freeSlots = 0;
+    }
+
+    /**
+     * A thread's slot in one lottery queue.
+     */
+    private static class Waiter {
+	Waiter(LotteryState state, LotteryQueue queue) {
+	    this.state = state;
+	    this.queue = queue;
+	}
+
+	LotteryState state;
+	LotteryQueue queue;
+	int slot;
+	/** The tickets this slot currently holds in the tree. */
+	long weight;
+    }
+
+    /**
+     * The lottery state of a thread: its own tickets, plus the tickets
+     * transferred to it by the queues it owns. Changes in effective tickets
+     * are pushed by their difference along the chain of queues the thread
+     * waits in and the threads that own them, so reading the effective
+     * tickets is O(1) and a transfer costs O(log n) per link of the chain.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(ticketsDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    changeDonation(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting for access to the
+	 * resource guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Waiter waiter = new Waiter(this, waitQueue);
+	    waiting.add(waiter);
+	    waitQueue.add(waiter);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    for (Iterator<Waiter> i = waiting.iterator(); i.hasNext(); ) {
+		Waiter waiter = i.next();
+		if (waiter.queue == waitQueue) {
+		    i.remove();
+		    waitQueue.remove(waiter);
+		    break;
+		}
+	    }
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of the associated thread,
+	 * and reweight it in every queue it waits in. A change that comes
+	 * back around a wait-for cycle to a thread it is still being passed on
+	 * from is dropped, so the thread does not donate to itself.
+	 *
+	 * @return	the change made, either <i>delta</i> or 0.
+	 */
+	long changeDonation(long delta) {
+	    if (delta == 0 || propagating)
+		return 0;
+
+	    effectiveTickets += delta;
+
+	    propagating = true;
+	    for (Waiter waiter : waiting)
+		waiter.queue.reweight(waiter);
+	    propagating = false;
+
+	    return delta;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** The tickets of the thread plus those transferred to it. */
+	protected long effectiveTickets = 0;
+
+	/** This thread's slot in each queue it waits in. */
+	private LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+	/** <tt>true</tt> while a change is being passed on from here. */
+	private boolean propagating = false;
     }
 }
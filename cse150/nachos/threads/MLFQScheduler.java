@@ -0,0 +1,516 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads start at the top level, and
+ * move down one level each time they use up the quantum of their level, which
+ * doubles at each level down. A thread that blocks before using up its
+ * quantum keeps its level and starts a fresh quantum, so threads that wait on
+ * I/O, locks or the alarm stay at high levels, while threads that compute
+ * sink. Yielding does not start a fresh quantum, so a thread cannot keep its
+ * level by yielding just before its quantum runs out. A ticking timer can
+ * only preempt a thread at a timer interrupt, so a thread preempted before
+ * it has used up its quantum keeps its level and runs the rest of it when it
+ * is next picked.
+ *
+ * <p>
+ * The waiting threads of each queue are dequeued from the highest occupied
+ * level, first come first served within a level. To keep low levels from
+ * starving, every thread is moved back to the top level every
+ * <tt>MLFQScheduler.boostPeriod</tt> ticks.
+ *
+ * <p>
+ * The priority of a thread is its level, counted up from the bottom level,
+ * which is 0, so setting it moves the thread to that level.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler. The number of levels is read from
+     * <tt>MLFQScheduler.levels</tt>, and the boost period from
+     * <tt>MLFQScheduler.boostPeriod</tt>.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 4);
+	Lib.assertTrue(levels >= 1 && levels <= 31,
+		       "MLFQScheduler.levels out of range");
+
+	boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod",
+					100 * Stats.TimerTicks);
+	Lib.assertTrue(boostPeriod > 0, "MLFQScheduler.boostPeriod not positive");
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. Levels are not donated.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels-1 - getFeedbackState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	getFeedbackState(thread).setLevel(levels-1 - priority);
+    }
+
+    /**
+     * Return what is left of the quantum of the current thread's level. The
+     * quantum of a level is the base quantum, doubled for every level below
+     * the top, and a thread that yielded part way through it only gets the
+     * rest.
+     *
+     * @return	the preemption quantum, in ticks.
+     */
+    public long getQuantum() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	FeedbackState state = getFeedbackState(KThread.currentThread());
+	long quantum = Math.max(getQuantum(state.getLevel()) - state.used, 1);
+
+	Machine.interrupt().restore(intStatus);
+	return quantum;
+    }
+
+    private long getQuantum(int level) {
+	return super.getQuantum() << level;
+    }
+
+    /**
+     * Charge the thread that just stopped running for the ticks it ran, and
+     * start timing the thread that is now running.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	if (time >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = time + boostPeriod;
+	}
+
+	if (running != null && running.thread != thread)
+	    running.stopRunning(time, running.isReady());
+
+	running = getFeedbackState(thread);
+	running.startRunning(time);
+    }
+
+    /**
+     * Test if this module is working. The levels are tested on a private
+     * scheduler; if this is the scheduler in use and the timer is tickless,
+     * also check that a thread two levels down runs for four base quanta.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	long quantum = scheduler.getQuantum(0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	FeedbackState a = scheduler.getFeedbackState(new KThread());
+	FeedbackState b = scheduler.getFeedbackState(new KThread());
+
+	// using up a quantum moves a thread down to a longer one
+	a.startRunning(0);
+	a.stopRunning(quantum, true);
+	Lib.assertTrue(a.getLevel() == 1 && a.used == 0);
+	Lib.assertTrue(scheduler.getQuantum(1) == 2*quantum);
+
+	// blocking before then keeps the level, with a fresh quantum
+	b.startRunning(0);
+	b.stopRunning(quantum-1, false);
+	Lib.assertTrue(b.getLevel() == 0 && b.used == 0);
+
+	// the higher level is dequeued first
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(a.thread);
+	queue.waitForAccess(b.thread);
+	Lib.assertTrue(queue.nextThread() == b.thread);
+
+	// a boost moves every thread back to the top level, behind the
+	// threads that were already there
+	queue.waitForAccess(b.thread);
+	scheduler.boostEpoch++;
+	Lib.assertTrue(a.getLevel() == 0);
+	Lib.assertTrue(queue.nextThread() == b.thread);
+	Lib.assertTrue(queue.nextThread() == a.thread);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	if (Config.getString("ThreadedKernel.scheduler")
+	    .equals(MLFQScheduler.class.getName()) &&
+	    scheduler.levels >= 3)
+	    quantumTest(scheduler.levels, scheduler.getQuantum(2));
+    }
+
+    /**
+     * Run a thread on level 2 against the current thread on the bottom
+     * level, and check that it gets the whole quantum of level 2 before it
+     * is preempted. With a ticking timer, it may run about one timer
+     * interval more or less.
+     */
+    private static void quantumTest(int levels, long quantum) {
+	Spinner spinner = new Spinner();
+	KThread thread = new KThread(spinner).setName("spinner");
+	KThread current = KThread.currentThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int priority = ThreadedKernel.scheduler.getPriority(current);
+	ThreadedKernel.scheduler.setPriority(current, 0);
+	ThreadedKernel.scheduler.setPriority(thread, levels-1 - 2);
+	thread.fork();
+
+	Machine.interrupt().restore(intStatus);
+
+	KThread.yield();
+	long ran = Machine.timer().getTime() - spinner.start;
+	spinner.done = true;
+	thread.join();
+
+	long least = quantum, most = quantum + Stats.TimerTicks;
+	if (!Machine.timer().isTickless()) {
+	    least -= Stats.TimerTicks;
+	    most += Stats.TimerTicks;
+	}
+
+	Lib.assertTrue(ran >= least && ran < most,
+		       "level 2 thread ran " + ran + " ticks");
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(current, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Spinner implements Runnable {
+	public void run() {
+	    start = Machine.timer().getTime();
+
+	    // every time interrupts are enabled, the clock ticks
+	    while (!done) {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+	    }
+	}
+
+	long start;
+	boolean done = false;
+    }
+
+    /**
+     * Return the feedback state of the specified thread.
+     *
+     * @param	thread	the thread whose feedback state to return.
+     * @return	the feedback state of the specified thread.
+     */
+    protected FeedbackState getFeedbackState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FeedbackState(thread);
+
+	return (FeedbackState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level. Bit <i>i</i> of
+     * <tt>occupied</tt> is set when level <i>i</i> has waiting threads, so the
+     * next thread is the head of the level named by the lowest set bit.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FeedbackState state = getFeedbackState(thread);
+
+	    // charge a thread that yields before it is queued, so it waits on
+	    // the level it ends up on
+	    if (readyQueue && state == running) {
+		running = null;
+		state.stopRunning(Machine.timer().getTime(), true);
+	    }
+
+	    Waiter waiter = new Waiter(state, this);
+	    state.waiting.add(waiter);
+
+	    checkBoost();
+	    insert(waiter);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    checkBoost();
+	    if (occupied == 0)
+		return null;
+
+	    Waiter waiter = head[Integer.numberOfTrailingZeros(occupied)];
+	    unlink(waiter);
+	    waiter.state.waiting.remove(waiter);
+
+	    // remember where running threads come from
+	    waiter.state.dequeuedFrom = this;
+
+	    return waiter.state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		for (Waiter waiter = head[level]; waiter != null;
+		     waiter = waiter.next)
+		    System.out.print(" " + waiter.state.thread + "(" + level +
+				     ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Move a waiting thread to the back of the list of its new level.
+	 */
+	void requeue(Waiter waiter) {
+	    unlink(waiter);
+	    insert(waiter);
+	}
+
+	/**
+	 * After a boost, move every waiting thread to the top level, keeping
+	 * higher levels ahead of lower ones.
+	 */
+	private void checkBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    for (int level=1; level<levels; level++) {
+		if (head[level] == null)
+		    continue;
+
+		for (Waiter waiter = head[level]; waiter != null;
+		     waiter = waiter.next)
+		    waiter.level = 0;
+
+		if (tail[0] == null)
+		    head[0] = head[level];
+		else
+		    tail[0].next = head[level];
+		head[level].prev = tail[0];
+		tail[0] = tail[level];
+
+		head[level] = tail[level] = null;
+	    }
+
+	    occupied = (head[0] != null) ? 1 : 0;
+	}
+
+	private void insert(Waiter waiter) {
+	    int level = waiter.state.getLevel();
+	    waiter.level = level;
+
+	    waiter.prev = tail[level];
+	    waiter.next = null;
+
+	    if (tail[level] == null)
+		head[level] = waiter;
+	    else
+		tail[level].next = waiter;
+	    tail[level] = waiter;
+
+	    occupied |= 1 << level;
+	}
+
+	private void unlink(Waiter waiter) {
+	    int level = waiter.level;
+
+	    if (waiter.prev == null)
+		head[level] = waiter.next;
+	    else
+		waiter.prev.next = waiter.next;
+
+	    if (waiter.next == null)
+		tail[level] = waiter.prev;
+	    else
+		waiter.next.prev = waiter.prev;
+
+	    waiter.prev = waiter.next = null;
+
+	    if (head[level] == null)
+		occupied &= ~(1 << level);
+	}
+
+	/**
+	 * <tt>true</tt> once a running thread has been dequeued from this
+	 * queue, which makes it the ready queue.
+	 */
+	boolean readyQueue = false;
+
+	private Waiter[] head = new Waiter[levels];
+	private Waiter[] tail = new Waiter[levels];
+	private int occupied = 0;
+	/** The boost epoch the levels of the waiting threads are from. */
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * A thread's place in one feedback queue.
+     */
+    private static class Waiter {
+	Waiter(FeedbackState state, FeedbackQueue queue) {
+	    this.state = state;
+	    this.queue = queue;
+	}
+
+	FeedbackState state;
+	FeedbackQueue queue;
+	int level;
+	Waiter prev, next;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the
+     * quantum of that level it has used.
+     */
+    protected class FeedbackState {
+	/**
+	 * Allocate a new <tt>FeedbackState</tt> object and associate it with
+	 * the specified thread. The thread starts at the top level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FeedbackState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, 0 being the top level.
+	 * A boost since the level was last read moves the thread to the top.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a fresh
+	 * quantum.
+	 *
+	 * @param	level	the new level, 0 being the top level.
+	 */
+	public void setLevel(int level) {
+	    getLevel();
+
+	    used = 0;
+	    if (this.level == level)
+		return;
+
+	    this.level = level;
+
+	    for (Waiter waiter : waiting)
+		waiter.queue.requeue(waiter);
+	}
+
+	/**
+	 * Called when the associated thread starts running.
+	 */
+	void startRunning(long time) {
+	    if (dequeuedFrom != null) {
+		dequeuedFrom.readyQueue = true;
+		dequeuedFrom = null;
+	    }
+
+	    runningSince = time;
+	}
+
+	/**
+	 * Called when the associated thread stops running. Charge it for the
+	 * ticks it ran, and move it down a level if that used up its quantum;
+	 * on the bottom level it just starts a fresh one. If it stopped
+	 * without going back on the ready queue, it blocked, and starts its
+	 * next turn with a fresh quantum.
+	 *
+	 * @param	time	the time it stopped running.
+	 * @param	ready	<tt>true</tt> if it is going back on the ready
+	 *			queue.
+	 */
+	void stopRunning(long time, boolean ready) {
+	    int level = getLevel();
+
+	    used += time - runningSince;
+
+	    if (used >= getQuantum(level)) {
+		if (level < levels-1)
+		    setLevel(level+1);
+		else
+		    used = 0;
+	    }
+	    else if (!ready) {
+		used = 0;
+	    }
+	}
+
+	boolean isReady() {
+	    for (Waiter waiter : waiting) {
+		if (waiter.queue.readyQueue)
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	private int level = 0;
+	/** The ticks of this level's quantum the thread has used. */
+	private long used = 0;
+	private long runningSince = 0;
+	/** The boost epoch <tt>level</tt> is from. */
+	private int epoch = boostEpoch;
+
+	/** The queue the thread was last dequeued from, until it runs. */
+	FeedbackQueue dequeuedFrom = null;
+	/** This thread's place in each queue it waits in. */
+	LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+    }
+
+    private int levels;
+    private long boostPeriod;
+
+    /** Incremented by every boost. */
+    private int boostEpoch = 0;
+    private long nextBoost = 0;
+
+    /** The thread that is running, as far as the scheduler knows. */
+    private FeedbackState running = null;
+}
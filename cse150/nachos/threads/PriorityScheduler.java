@@ -109,6 +109,75 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /**
+     * Test if this module is working, on a private scheduler: the order of
+     * a queue, and donation along a chain of locks.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler = new PriorityScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState[] states = new ThreadState[4];
+	for (int i=0; i<states.length; i++)
+	    states[i] = scheduler.getThreadState(new KThread());
+	states[1].setPriority(3);
+	states[3].setPriority(3);
+
+	// the highest priority first, first come first served among ties
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<states.length; i++)
+	    queue.waitForAccess(states[i].thread);
+
+	int[] order = { 1, 3, 0, 2 };
+	for (int i=0; i<order.length; i++)
+	    Lib.assertTrue(queue.nextThread() == states[order[i]].thread);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// a thread raised into a bucket goes behind the threads there that
+	// started waiting before it, and ahead of the rest
+	for (int i=0; i<states.length; i++)
+	    queue.waitForAccess(states[i].thread);
+	states[2].setPriority(3);
+
+	order = new int[] { 1, 2, 3, 0 };
+	for (int i=0; i<order.length; i++)
+	    Lib.assertTrue(queue.nextThread() == states[order[i]].thread);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// states[0] holds lock0, which states[1] waits for while holding
+	// lock1, which states[2] waits for
+	for (int i=0; i<3; i++)
+	    states[i] = scheduler.getThreadState(new KThread());
+	ThreadQueue lock0 = scheduler.newThreadQueue(true);
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	lock0.acquire(states[0].thread);
+	lock1.acquire(states[1].thread);
+	lock0.waitForAccess(states[1].thread);
+	states[2].setPriority(priorityMaximum);
+	lock1.waitForAccess(states[2].thread);
+
+	// a donation goes all the way down the chain, and so does its loss
+	Lib.assertTrue(states[0].getEffectivePriority() == priorityMaximum &&
+		       states[1].getEffectivePriority() == priorityMaximum);
+	states[2].setPriority(2);
+	Lib.assertTrue(states[0].getEffectivePriority() == 2 &&
+		       states[1].getEffectivePriority() == 2);
+
+	// closing a cycle settles instead of looping
+	lock1.waitForAccess(states[0].thread);
+	states[0].setPriority(5);
+	Lib.assertTrue(states[0].getEffectivePriority() == 5 &&
+		       states[1].getEffectivePriority() == 5);
+
+	// breaking it leaves the holder with only its own priority
+	Lib.assertTrue(lock1.nextThread() == states[0].thread);
+	Lib.assertTrue(states[1].getEffectivePriority() == priorityDefault &&
+		       states[0].getEffectivePriority() == 5);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -124,72 +193,41 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * The waiting threads are kept in one FIFO bucket per effective priority,
+     * and bit <i>i</i> of <tt>occupied</tt> is set when the bucket for
+     * priority <tt>priorityMaximum - </tt><i>i</i> is not empty, so the
+     * highest waiting priority is always the lowest set bit. A queue that
+     * transfers priority donates exactly that priority to its owner, and
+     * passes the change on whenever it moves.
      */
-	 ///////////////////////////////////PRIORITY_QUEUE	////////////////////////////////////
     protected class PriorityQueue extends ThreadQueue {
-    
-    	// Variables For PriorityQueue
-    ThreadState current;	// current thread
-    LinkedList <ThreadState> tstate;	// Linked list of thread states
-    boolean flag;	// Flag for checking priority update
-    int effectiveP;
-	boolean transfer;
-    
 	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
-
-	    // Allocate variables
-	    current = null;
-	    tstate = new LinkedList <ThreadState>();
-	    flag = false;
-		effectiveP = 0;
-		transfer = transferPriority;
 	}
 
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    getThreadState(thread).waitForAccess(this);
-	    
-	    //Get threadstate of argument and add to List of threadstates
-	    tstate.add(getThreadState(thread));
-	    
 	}
 
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    getThreadState(thread).acquire(this);
-	    // sets current thread to thread state
-		//if old owner is not null then remove it from queue
-	    if(current != null){
-			current.currentResources.remove(this);
-			current.setCacheToDirty();
-		}
-		//acquire resource and create current ownser of thread
-	   ThreadState nextTstate = getThreadState(thread);
-	   current = nextTstate;
-	   nextTstate.acquire(this);
 	}
 
-	// Select next thread in queue.
 	public KThread nextThread() {
-		Lib.assertTrue(Machine.interrupt().disabled());
-
+	    Lib.assertTrue(Machine.interrupt().disabled());
 
-		if(tstate.isEmpty()) {	// Check to see if thread list is empty
-	    	return null;
-		}
-		
-		// Call to pickNextThread that will return highest priority thread
-		ThreadState nextThread = pickNextThread();
-	
-		
-	    // Check nextThread if not null, remove from LinkedList tstate and acquire resource
-	    if (nextThread != null) {	
-	    	tstate.remove(nextThread);
-	    	acquire(nextThread.thread);	// current acquires resource
+	    ThreadState nextThread = pickNextThread();
+	    if (nextThread == null) {
+		// nobody takes over, so the owner gives up access
+		setOwner(null);
+		return null;
 	    }
-	    
-	   
+
+	    nextThread.acquire(this);
 	    return nextThread.thread;
 	}
 
@@ -200,56 +238,139 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the next thread that <tt>nextThread()</tt> would
 	 *		return.
 	 */
-	protected ThreadState pickNextThread() {	// Returns KThread instead of ThreadState
-	    // implement me
-		ThreadState nextTS = null;
-
-		if(!tstate.isEmpty()){	
-			//Get first threadstate from list
-			nextTS = tstate.getFirst();
-			//Loop through list and Check Priorities
-			
-			for(int i = 0; i < tstate.size(); i++) {
-				ThreadState temp = tstate.get(i);	// Set temp to threadstates in LinkedList tlist
-							
-				if(temp.getEffectivePriority() > nextTS.priority ) {	// Compare priorities and set to thread for return.  
-					nextTS = temp;	//nextTS gets largest priority
-				}
-				
-			}
-			
-		}
-		
-		return nextTS;
+	protected ThreadState pickNextThread() {
+	    if (occupied == 0)
+		return null;
+
+	    return head[Integer.numberOfTrailingZeros(occupied)].state;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int bucket = 0; bucket < head.length; bucket++) {
+		for (Waiter waiter = head[bucket]; waiter != null;
+		     waiter = waiter.next)
+		    System.out.print(" " + waiter.state.thread + "(" +
+				     waiter.state.getEffectivePriority() + ")");
+	    }
+	    System.out.println();
 	}
 
-	/*PriorityQueue getEffectivePriority() will loop through  the list of 
-	 * threadstates and return its highest priority.
-	 * To be called in pickNextThread
-	 * If queue is flagged, return max priority of each thread.
+	/**
+	 * Return the priority this queue donates to its owner: the highest
+	 * effective priority of any waiting thread, or -1 if no thread is
+	 * waiting.
 	 */
-	int getEffectivePriority() {
-		// Check if thread has been flagged for update
-		if(flag && transferPriority) { 
-			effectiveP = priorityMinimum;
-			flag = false;
-			
-			// Loop through LinkedList 
-			for(int i = 0; i < tstate.size();i++) {
-				ThreadState temp = tstate.get(i);
-				//Compare priorities and set effective to largest
-				if (temp.getEffectivePriority() > effectiveP) {
-					effectiveP = temp.getEffectivePriority();
-				}
-			}
-		}
-		
-		return effectiveP;
+	int getDonation() {
+	    if (occupied == 0)
+		return -1;
+
+	    return priorityMaximum - Integer.numberOfTrailingZeros(occupied);
+	}
+
+	/**
+	 * File a thread at the back of the bucket for its effective priority.
+	 */
+	void add(Waiter waiter) {
+	    insert(waiter);
+	    updateDonation();
+	}
+
+	/**
+	 * Take a thread out of this queue.
+	 */
+	void remove(Waiter waiter) {
+	    unlink(waiter);
+	    updateDonation();
+	}
+
+	/**
+	 * Move a thread whose effective priority changed to its new bucket.
+	 * Among the threads already in that bucket, it goes behind every
+	 * thread that started waiting before it did, so ties still resolve
+	 * FIFO.
+	 */
+	void requeue(Waiter waiter) {
+	    unlink(waiter);
+	    insert(waiter);
+	    updateDonation();
+	}
+
+	/**
+	 * Hand this queue to a new owner, moving its donation from the old
+	 * owner to the new one.
+	 */
+	void setOwner(ThreadState state) {
+	    if (!transferPriority || state == owner)
+		return;
+
+	    if (owner != null && donation >= 0)
+		owner.removeDonation(donation);
+
+	    owner = state;
+	    donation = -1;
+	    updateDonation();
+	}
+
+	/**
+	 * Bring the owner's donation from this queue up to date, if it
+	 * changed.
+	 */
+	private void updateDonation() {
+	    if (!transferPriority || owner == null)
+		return;
+
+	    int newDonation = getDonation();
+	    if (newDonation == donation)
+		return;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+	    owner.changeDonation(oldDonation, newDonation);
+	}
+
+	private void insert(Waiter waiter) {
+	    int bucket = priorityMaximum - waiter.state.getEffectivePriority();
+	    waiter.bucket = bucket;
+
+	    Waiter before = tail[bucket];
+	    while (before != null && before.sequence > waiter.sequence)
+		before = before.prev;
+
+	    waiter.prev = before;
+	    waiter.next = (before == null) ? head[bucket] : before.next;
+
+	    if (waiter.prev == null)
+		head[bucket] = waiter;
+	    else
+		waiter.prev.next = waiter;
+
+	    if (waiter.next == null)
+		tail[bucket] = waiter;
+	    else
+		waiter.next.prev = waiter;
+
+	    occupied |= 1 << bucket;
+	}
+
+	private void unlink(Waiter waiter) {
+	    int bucket = waiter.bucket;
+
+	    if (waiter.prev == null)
+		head[bucket] = waiter.next;
+	    else
+		waiter.prev.next = waiter.next;
+
+	    if (waiter.next == null)
+		tail[bucket] = waiter.prev;
+	    else
+		waiter.next.prev = waiter.prev;
+
+	    waiter.prev = waiter.next = null;
+
+	    if (head[bucket] == null)
+		occupied &= ~(1 << bucket);
 	}
 
 	/**
@@ -257,6 +378,35 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread holding the resource, if this queue donates. */
+	private ThreadState owner = null;
+	/** The priority currently donated to <tt>owner</tt>, or -1. */
+	private int donation = -1;
+
+	/** The first and last waiting thread of each priority bucket. */
+	private Waiter[] head = new Waiter[priorityMaximum+1];
+	private Waiter[] tail = new Waiter[priorityMaximum+1];
+	/** Bit <i>i</i> is set when bucket <i>i</i> is not empty. */
+	private int occupied = 0;
+    }
+
+    /**
+     * A thread's place in one priority queue.
+     */
+    private static class Waiter {
+	Waiter(ThreadState state, PriorityQueue queue, long sequence) {
+	    this.state = state;
+	    this.queue = queue;
+	    this.sequence = sequence;
+	}
+
+	ThreadState state;
+	PriorityQueue queue;
+	/** When the thread started waiting, for FIFO order among ties. */
+	long sequence;
+	int bucket;
+	Waiter prev, next;
     }
 
     /**
@@ -264,9 +414,14 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached, and kept current by pushing every
+     * change along the chain of queues the thread waits in and the threads
+     * that own them. The push stops as soon as some effective priority comes
+     * out unchanged, so reads are O(1) and updates are O(chain length).
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
-	//////////////////////////////////////////////////THREADSTATE /////////////////////////////////////////////////////////
     protected class ThreadState {
 	/**
 	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -274,20 +429,9 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @param	thread	the thread this state belongs to.
 	 */
-	 //list for resources this thread is waiting on
-	 LinkedList<PriorityQueue> waitingOnResources;
-	 //list for resources this thread is currently holding
-	 LinkedList<PriorityQueue> currentResources;
-	//Effective priority
-	int effectiveP = 0;
-	//dirty bit
-	boolean dirtyBit = false;
-
-
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-		waitingOnResources = new LinkedList<PriorityQueue>();
-		currentResources = new LinkedList<PriorityQueue>();
+	    
 	    setPriority(priorityDefault);
 	}
 
@@ -306,25 +450,9 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // check if no resources held in the thread
-		if(currentResources.isEmpty())
-	    	return priority;
-		//otherwise get the effective priority of the resources currently being held1
-		if(dirtyBit){
-			this.effectiveP = priority;
-			//no updates needed after this one
-			dirtyBit = false;
-			for(int i = 0; i < currentResources.size(); i++){
-				int currentPriority = currentResources.get(i).getEffectivePriority();
-				if(currentPriority > effectiveP){
-					effectiveP = currentPriority;
-				}
-			}	
-		}
-		return effectiveP; 
+	    return effectivePriority;
 	}
 
-
 	/**
 	 * Set the priority of the associated thread to the specified value.
 	 *
@@ -336,19 +464,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	   for(int i = 0; i < waitingOnResources.size(); i++){ 
-			waitingOnResources.get(i).flag = true;
-		}
-	}
-
-	//Helper function to set queue to dirty when priority has changed
-	public void setCacheToDirty(){
-		if(!dirtyBit){
-			dirtyBit = true;
-		}
-		for(int i = 0; i < waitingOnResources.size(); i++){ 
-			waitingOnResources.get(i).flag = true;
-		}
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -364,13 +480,9 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    //waiting for these resources
-		waitingOnResources.add(waitQueue);
-		//delete from current resources if in there
-		currentResources.remove(waitQueue);
-
-		//let priorityqueue know about update
-		waitQueue.flag = true;
+	    Waiter waiter = new Waiter(this, waitQueue, nextWaitSequence++);
+	    waiting.add(waiter);
+	    waitQueue.add(waiter);
 	}
 
 	/**
@@ -384,19 +496,73 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    //delete resource queue from waiting for access list
-		waitingOnResources.remove(waitQueue); 
-		//obtain resoure queue queue
-		currentResources.add(waitQueue);
+	    for (Iterator<Waiter> i = waiting.iterator(); i.hasNext(); ) {
+		Waiter waiter = i.next();
+		if (waiter.queue == waitQueue) {
+		    i.remove();
+		    waitQueue.remove(waiter);
+		    break;
+		}
+	    }
 
-		//let priorityqueue know about update
-		waitQueue.flag = true;
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Replace a donation from one of the queues this thread owns. Either
+	 * priority may be -1, for no donation.
+	 */
+	void changeDonation(int oldDonation, int newDonation) {
+	    if (oldDonation >= 0 && --donations[oldDonation] == 0)
+		donationMask &= ~(1 << oldDonation);
+	    if (newDonation >= 0 && donations[newDonation]++ == 0)
+		donationMask |= 1 << newDonation;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Drop a donation from a queue this thread no longer owns.
+	 */
+	void removeDonation(int donation) {
+	    changeDonation(donation, -1);
+	}
+
+	/**
+	 * Recompute the effective priority from the base priority and the
+	 * highest donation, and if it changed, move this thread within every
+	 * queue it waits in. Those queues pass the change on to their owners.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = priority;
+	    if (donationMask != 0)
+		effective = Math.max(effective,
+				     31 - Integer.numberOfLeadingZeros(donationMask));
+
+	    if (effective == effectivePriority)
+		return;
+
+	    effectivePriority = effective;
+
+	    for (Waiter waiter : waiting)
+		waiter.queue.requeue(waiter);
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
-	protected int priority;
+	protected int priority = -1;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+
+	/** The number of owned queues donating each priority. */
+	private int[] donations = new int[priorityMaximum+1];
+	/** Bit <i>p</i> is set when some owned queue donates priority p. */
+	private int donationMask = 0;
+	/** This thread's place in each queue it waits in. */
+	private LinkedList<Waiter> waiting = new LinkedList<Waiter>();
     }
-}
 
+    /** Numbers threads in the order they start waiting. */
+    private long nextWaitSequence = 0;
+}
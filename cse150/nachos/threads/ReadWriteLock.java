@@ -0,0 +1,318 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * readers at once, or by a single writer. There are four operations:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds the lock,
+ * and then hold it as a reader.
+ * <li><tt>releaseRead()</tt>: stop holding the lock as a reader, handing it
+ * on if this was the last reader.
+ * <li><tt>acquireWrite()</tt>: atomically wait until nobody holds the lock,
+ * and then hold it as its writer.
+ * <li><tt>releaseWrite()</tt>: set the lock to be free, handing it on to the
+ * waiting threads.
+ * </ul>
+ *
+ * <p>
+ * By default, readers are preferred: a reader gets the lock whenever no
+ * writer holds it, and when a writer releases it, every waiting reader gets
+ * it at once. A steady stream of readers can keep a writer waiting forever.
+ * If writers are preferred instead, a reader also waits while a writer is
+ * waiting, and a writer that releases the lock hands it to the next waiting
+ * writer before any reader, so a steady stream of writers can keep readers
+ * waiting forever.
+ *
+ * <p>
+ * Waiting threads donate priority through their thread queues, as with a
+ * <tt>Lock</tt>. A thread queue has just one holder, so while readers hold the
+ * lock, the waiting threads donate to the reader that has held it longest.
+ *
+ * <p>
+ * Only a thread holding the lock may release it, and a thread may not acquire
+ * the lock again, in either mode, while it holds it.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock that prefers readers. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	preferWriters	<tt>true</tt> to make readers wait while a
+     *				writer is waiting.
+     */
+    public ReadWriteLock(boolean preferWriters) {
+	this.preferWriters = preferWriters;
+    }
+
+    /**
+     * Atomically wait until the lock can be read, and then hold it as a
+     * reader.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || (preferWriters && writersWaiting > 0)) {
+	    if (readersWaiting++ == 0)
+		readQueue.acquire(getHolder());
+
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop holding the lock as a reader. If this was the last reader, hand
+     * the lock to a waiting writer, if any.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	boolean wasHolder = (getHolder() == thread);
+
+	boolean wasReader = readers.remove(thread);
+	Lib.assertTrue(wasReader);
+
+	if (readers.isEmpty()) {
+	    handOff();
+	}
+	else if (wasHolder) {
+	    setHolder(readQueue, readersWaiting);
+	    setHolder(writeQueue, writersWaiting);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until the lock is free, and then hold it as its
+     * writer.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    if (writersWaiting++ == 0)
+		writeQueue.acquire(getHolder());
+
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release the lock, handing it on to the waiting threads.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	handOff();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock as its writer.
+     *
+     * @return	true if the current thread holds this lock as its writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock, as a reader or as its
+     * writer.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	boolean held = (writer == thread || readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Hand the free lock to the next waiting writer, or to every waiting
+     * reader, as the preference decides.
+     */
+    private void handOff() {
+	Lib.assertTrue(writer == null && readers.isEmpty());
+
+	if (preferWriters && handToWriter())
+	    return;
+
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    readersWaiting--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+
+	if (readers.isEmpty())
+	    handToWriter();
+	else
+	    setHolder(writeQueue, writersWaiting);
+    }
+
+    /**
+     * Hand the free lock to the next waiting writer.
+     *
+     * @return	<tt>true</tt> if a writer was waiting.
+     */
+    private boolean handToWriter() {
+	KThread thread = writeQueue.nextThread();
+	if (thread == null)
+	    return false;
+
+	writersWaiting--;
+	writer = thread;
+	thread.ready();
+
+	setHolder(readQueue, readersWaiting);
+	return true;
+    }
+
+    /**
+     * Make the thread returned by <tt>getHolder()</tt> the holder of a queue
+     * with the specified number of waiting threads, which stay where they
+     * are. Otherwise they would go on donating to a thread that no longer
+     * holds the lock, which could even be waiting behind them.
+     */
+    private void setHolder(ThreadQueue queue, int waiting) {
+	if (waiting > 0)
+	    queue.acquire(getHolder());
+    }
+
+    private static class Tester implements Runnable {
+	Tester(ReadWriteLock lock, boolean write, Semaphore done) {
+	    this.lock = lock;
+	    this.write = write;
+	    this.done = done;
+	}
+
+	public void run() {
+	    if (write) {
+		lock.acquireWrite();
+		lock.releaseWrite();
+	    }
+	    else {
+		lock.acquireRead();
+		lock.releaseRead();
+	    }
+
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private boolean write;
+	private Semaphore done;
+    }
+
+    /**
+     * Test if this module is working, with either preference.
+     */
+    public static void selfTest() {
+	selfTest(false);
+	selfTest(true);
+    }
+
+    /**
+     * While the current thread holds the lock as its writer, queue a reader,
+     * a writer and another reader, then check who the lock is handed to
+     * when it is released.
+     */
+    private static void selfTest(boolean preferWriters) {
+	ReadWriteLock lock = new ReadWriteLock(preferWriters);
+	Semaphore done = new Semaphore(0);
+	lock.acquireWrite();
+
+	KThread reader1 = new KThread(new Tester(lock, false, done));
+	KThread writer = new KThread(new Tester(lock, true, done));
+	KThread reader2 = new KThread(new Tester(lock, false, done));
+	reader1.setName("reader 1").fork();
+	writer.setName("writer").fork();
+	reader2.setName("reader 2").fork();
+
+	while (lock.readersWaiting < 2 || lock.writersWaiting < 1)
+	    KThread.yield();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	lock.releaseWrite();
+	if (preferWriters) {
+	    Lib.assertTrue(lock.writer == writer && lock.readersWaiting == 2);
+	}
+	else {
+	    Lib.assertTrue(lock.writer == null && lock.readers.size() == 2 &&
+			   lock.writersWaiting == 1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<3; i++)
+	    done.P();
+
+	Lib.assertTrue(lock.writer == null && lock.readers.isEmpty());
+    }
+
+    /**
+     * Return the thread the lock's waiters should donate to: the writer, or
+     * the reader that has held the lock longest.
+     */
+    private KThread getHolder() {
+	return (writer != null) ? writer : readers.getFirst();
+    }
+
+    private boolean preferWriters;
+
+    private KThread writer = null;
+    /** The readers holding the lock, the one held longest first. */
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int readersWaiting = 0;
+    private int writersWaiting = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
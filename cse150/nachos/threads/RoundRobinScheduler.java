@@ -60,13 +60,11 @@ public class RoundRobinScheduler extends Scheduler {
 
 	/**
 	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Any threads
+	 * waiting for access keep waiting.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
 	/**
@@ -131,6 +131,66 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Return the number of ticks the current thread may run before it is
+     * preempted, while other threads are ready to run. Called when a thread
+     * starts running. A ticking hardware timer can only preempt a thread at
+     * a timer interrupt, about every <tt>Stats.TimerTicks</tt> ticks, so a
+     * quantum of that or less ends at the next interrupt.
+     *
+     * @return	the preemption quantum, in ticks.
+     */
+    public long getQuantum() {
+	return Stats.TimerTicks;
+    }
+
+    /**
+     * Decide whether a thread that just woke up should take the CPU from the
+     * current thread at once, rather than wait for the current thread's
+     * quantum to end. Called by the alarm with interrupts disabled. By
+     * default, a thread preempts a thread of lower effective priority.
+     *
+     * @param	thread	the thread that just became ready.
+     * @param	current	the current thread.
+     * @return	<tt>true</tt> if <i>thread</i> should preempt <i>current</i>.
+     */
+    public boolean shouldPreempt(KThread thread, KThread current) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getEffectivePriority(thread) > getEffectivePriority(current);
+    }
+
+    /**
+     * Tell this scheduler that the specified thread is periodic. Called by
+     * <tt>KThread.setPeriod()</tt> with interrupts disabled, and with a
+     * <i>period</i> of 0 when a periodic thread becomes aperiodic again or
+     * finishes. A scheduler that guarantees deadlines should reject a thread
+     * whose deadlines it could not meet. By default, every thread is
+     * admitted, and deadlines have no effect on scheduling.
+     *
+     * @param	thread		the thread.
+     * @param	period		the ticks between releases, or 0.
+     * @param	deadline	the ticks from each release to its deadline.
+     * @param	budget		the most ticks each job may run.
+     * @return	<tt>true</tt> if the thread is admitted.
+     */
+    public boolean setPeriod(KThread thread, long period, long deadline,
+			     long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
+    /**
+     * Notify this scheduler that the specified thread has started running.
+     * <tt>KThread.restoreState()</tt> calls this after every context switch,
+     * with interrupts disabled, so schedulers can account for the time each
+     * thread runs. The default does nothing.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -0,0 +1,616 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Scheduling statistics for a threaded kernel. If
+ * <tt>ThreadedKernel.schedulerStats</tt> is set, the kernel records, for
+ * every thread, the ticks it spends ready, running and blocked, and how many
+ * times it is switched to; the length of the ready queue over time; and the
+ * waits in every thread queue, whichever scheduler allocated it. Each queue
+ * keeps its own histogram of waits, and <tt>print()</tt> groups the queues by
+ * where a thread first waited in them. The
+ * statistics are printed when Nachos exits, and by <tt>print()</tt> at any
+ * time.
+ *
+ * <p>
+ * Recording costs a few field updates per context switch, a hash table
+ * update per queue operation, a stack trace the first time a thread waits in
+ * a queue, and no simulated time at all, so it can be left on. Queues that
+ * nobody waits in cost nothing beyond their wrapper. Waits are kept in histograms with a bucket per power of two, so
+ * their size does not grow with the number of waits, and a thread that
+ * finishes is folded into a total for all finished threads, so the table
+ * only grows with the number of live threads. Likewise, the statistics of a
+ * queue that has been garbage collected are folded into a total for its
+ * site.
+ */
+public class SchedulerStats {
+    /**
+     * Allocate a new scheduler statistics object.
+     */
+    public SchedulerStats() {
+	lengthSince = Machine.timer().getTime();
+    }
+
+    /**
+     * Return a scheduler that behaves exactly like <i>scheduler</i>, but whose
+     * thread queues record how long threads wait in them.
+     *
+     * @param	scheduler	the scheduler to observe.
+     * @return	the observed scheduler.
+     */
+    public Scheduler observe(Scheduler scheduler) {
+	return new ObservedScheduler(scheduler);
+    }
+
+    /**
+     * Called by <tt>KThread.createIdleThread()</tt>. The idle thread's running
+     * time is reported as idle time, and it is left out of the thread table.
+     *
+     * @param	thread	the idle thread.
+     */
+    void setIdleThread(KThread thread) {
+	idleThread = getThreadStats(thread);
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when a thread other than the idle
+     * thread joins the ready queue.
+     *
+     * @param	thread	the thread that is now ready.
+     */
+    void readyThread(KThread thread) {
+	long time = Machine.timer().getTime();
+
+	getThreadStats(thread).setState(ThreadStats.ready, time);
+	setLength(length+1, time);
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt> after every context switch.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    void runningThread(KThread thread) {
+	long time = Machine.timer().getTime();
+
+	switches++;
+
+	// the idle thread does not report leaving the CPU
+	if (running != null && running.state == ThreadStats.running)
+	    running.setState(ThreadStats.created, time);
+
+	running = getThreadStats(thread);
+
+	if (running.state == ThreadStats.ready)
+	    setLength(length-1, time);
+
+	running.setState(ThreadStats.running, time);
+	running.switches++;
+    }
+
+    /**
+     * Called by <tt>KThread.sleep()</tt> when the current thread blocks or
+     * finishes.
+     *
+     * @param	thread	the current thread.
+     * @param	finished	<tt>true</tt> if the thread has finished.
+     */
+    void sleepingThread(KThread thread, boolean finished) {
+	long time = Machine.timer().getTime();
+
+	if (!finished) {
+	    getThreadStats(thread).setState(ThreadStats.blocked, time);
+	    return;
+	}
+
+	// keep only the totals of a finished thread, so the table does not
+	// hold on to every thread that ever ran
+	ThreadStats stats = threads.remove(thread);
+	if (stats == null)
+	    return;
+
+	stats.setState(ThreadStats.finished, time);
+	retired.retire(stats);
+	numRetired++;
+    }
+
+    /**
+     * Print the statistics recorded so far, with up to ten live threads,
+     * those that waited longest on the ready queue at a time.
+     */
+    public void print() {
+	print(10);
+    }
+
+    /**
+     * Print the statistics recorded so far.
+     *
+     * @param	maxThreads	the most live threads to list. The threads that
+     *				waited longest on the ready queue at a time
+     *				are listed first, since they are the ones most
+     *				likely to be starved.
+     */
+    public void print(int maxThreads) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+
+	setLength(length, time);
+
+	long idleTicks = (idleThread == null) ? 0 :
+	    idleThread.ticks(ThreadStats.running, time);
+
+	System.out.println("Scheduler: switches " + switches +
+			   ", idle ticks " + idleTicks);
+	System.out.println("Ready queue: mean length " +
+			   format(lengths.getMean()) + ", max " +
+			   lengths.max);
+	System.out.println("    ticks by length: " + lengths);
+
+	// group the live queues with the collected ones from the same site
+	reapQueues();
+
+	LinkedHashMap<String, QueueGroup> groups =
+	    new LinkedHashMap<String, QueueGroup>();
+	for (QueueGroup retired : retiredQueues.values())
+	    getGroup(groups, retired.site).add(retired);
+	for (QueueRef ref : liveQueues)
+	    getGroup(groups, ref.stats.site).add(ref.stats);
+
+	System.out.println("Queue waits, by site of first wait:");
+	for (QueueGroup group : groups.values()) {
+	    QueueStats total = group.total, busiest = group.busiest;
+
+	    System.out.println("    " + group.site + ": queues " + group.count +
+			       ", waits " + total.waits.count +
+			       ", mean " + format(total.waits.getMean()) +
+			       ", max " + total.waits.max +
+			       ", most waiting " + total.maxWaiting);
+	    System.out.println("        waits by ticks: " + total.waits);
+	    System.out.println("        busiest queue: waits " +
+			       busiest.waits.count +
+			       ", mean " + format(busiest.waits.getMean()) +
+			       ", max " + busiest.waits.max);
+	}
+
+	ArrayList<ThreadStats> list = new ArrayList<ThreadStats>();
+	for (ThreadStats stats : threads.values()) {
+	    if (stats != idleThread)
+		list.add(stats);
+	}
+
+	Collections.sort(list, new Comparator<ThreadStats>() {
+		public int compare(ThreadStats a, ThreadStats b) {
+		    long wa = a.longestReady(time), wb = b.longestReady(time);
+		    return (wa > wb) ? -1 : (wa < wb) ? 1 : 0;
+		}
+	    });
+
+	System.out.println("Finished threads: " + numRetired +
+			   ", ready " + retired.ticks[ThreadStats.ready] +
+			   ", running " + retired.ticks[ThreadStats.running] +
+			   ", blocked " + retired.ticks[ThreadStats.blocked] +
+			   ", switches " + retired.switches +
+			   ", longest ready " + retired.longestReady);
+
+	System.out.println("Live threads: " + list.size() +
+			   ", by longest ready wait (ticks):");
+	for (int i=0; i<list.size() && i<maxThreads; i++) {
+	    ThreadStats stats = list.get(i);
+
+	    System.out.println("    " + stats.thread +
+			       ": ready " + stats.ticks(ThreadStats.ready, time) +
+			       ", running " + stats.ticks(ThreadStats.running, time) +
+			       ", blocked " + stats.ticks(ThreadStats.blocked, time) +
+			       ", switches " + stats.switches +
+			       ", longest ready " + stats.longestReady(time));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    static String format(double value) {
+	return "" + Math.round(value * 100) / 100.0;
+    }
+
+    private void setLength(int newLength, long time) {
+	lengths.add(length, time - lengthSince);
+
+	length = newLength;
+	lengthSince = time;
+    }
+
+    /**
+     * Start keeping the statistics of a queue that a thread has waited in for
+     * the first time.
+     */
+    private void addQueue(ObservedQueue queue) {
+	reapQueues();
+
+	liveQueues.add(new QueueRef(queue, collectedQueues));
+    }
+
+    /**
+     * Fold the statistics of the queues that have been garbage collected
+     * into the totals for their sites.
+     */
+    private void reapQueues() {
+	QueueRef ref;
+	while ((ref = (QueueRef) collectedQueues.poll()) != null) {
+	    liveQueues.remove(ref);
+	    getGroup(retiredQueues, ref.stats.site).add(ref.stats);
+	}
+    }
+
+    private static QueueGroup getGroup(LinkedHashMap<String, QueueGroup> groups,
+				       String site) {
+	QueueGroup group = groups.get(site);
+	if (group == null) {
+	    group = new QueueGroup(site);
+	    groups.put(site, group);
+	}
+
+	return group;
+    }
+
+    private ThreadStats getThreadStats(KThread thread) {
+	ThreadStats stats = threads.get(thread);
+	if (stats == null) {
+	    stats = new ThreadStats(thread);
+	    threads.put(thread, stats);
+	}
+
+	return stats;
+    }
+
+    /**
+     * A histogram with a bucket per power of two. Bucket 0 holds the value
+     * 0, and bucket <i>b</i> &gt; 0 holds the values from
+     * 2<sup><i>b</i>-1</sup> up to 2<sup><i>b</i></sup>-1.
+     */
+    static class Histogram {
+	/**
+	 * Add <i>weight</i> samples of <i>value</i>.
+	 */
+	void add(long value, long weight) {
+	    if (weight == 0)
+		return;
+
+	    buckets[64 - Long.numberOfLeadingZeros(value)] += weight;
+	    count += weight;
+	    sum += value * weight;
+	    max = Math.max(max, value);
+	}
+
+	double getMean() {
+	    return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Add all the samples of another histogram.
+	 */
+	void add(Histogram histogram) {
+	    for (int b=0; b<buckets.length; b++)
+		buckets[b] += histogram.buckets[b];
+
+	    count += histogram.count;
+	    sum += histogram.sum;
+	    max = Math.max(max, histogram.max);
+	}
+
+	public String toString() {
+	    StringBuffer buffer = new StringBuffer();
+
+	    for (int b=0; b<buckets.length; b++) {
+		if (buckets[b] == 0)
+		    continue;
+
+		if (buffer.length() > 0)
+		    buffer.append(' ');
+		buffer.append("<" + (1L << b) + ":" + buckets[b]);
+	    }
+
+	    return buffer.toString();
+	}
+
+	long[] buckets = new long[65];
+	long count = 0;
+	long sum = 0;
+	long max = 0;
+    }
+
+    /**
+     * The waits in one queue, or the total of several.
+     */
+    private static class QueueStats {
+	QueueStats(String site) {
+	    this.site = site;
+	}
+
+	void add(QueueStats stats) {
+	    waits.add(stats.waits);
+	    maxWaiting = Math.max(maxWaiting, stats.maxWaiting);
+	}
+
+	/** Where a thread first waited in the queue. */
+	String site;
+	int maxWaiting = 0;
+	Histogram waits = new Histogram();
+    }
+
+    /**
+     * The total waits in the queues from one site, and the queue among them
+     * with the most waits.
+     */
+    private static class QueueGroup {
+	QueueGroup(String site) {
+	    this.site = site;
+	    total = new QueueStats(site);
+	}
+
+	void add(QueueStats stats) {
+	    count++;
+	    total.add(stats);
+
+	    if (busiest == null || stats.waits.count > busiest.waits.count)
+		busiest = stats;
+	}
+
+	void add(QueueGroup group) {
+	    count += group.count;
+	    total.add(group.total);
+
+	    if (busiest == null ||
+		group.busiest.waits.count > busiest.waits.count)
+		busiest = group.busiest;
+	}
+
+	String site;
+	int count = 0;
+	QueueStats total;
+	QueueStats busiest = null;
+    }
+
+    /**
+     * A weak reference to a queue that has been waited in. It keeps the
+     * statistics of the queue, so they can be folded into the total for its
+     * site once the queue is collected.
+     */
+    private static class QueueRef extends WeakReference<ObservedQueue> {
+	QueueRef(ObservedQueue queue, ReferenceQueue<ObservedQueue> collected) {
+	    super(queue, collected);
+	    stats = queue.stats;
+	}
+
+	QueueStats stats;
+    }
+
+    /**
+     * The ticks one thread has spent in each state.
+     */
+    private static class ThreadStats {
+	ThreadStats(KThread thread) {
+	    this.thread = thread;
+	    since = Machine.timer().getTime();
+	}
+
+	void setState(int newState, long time) {
+	    ticks[state] += time - since;
+
+	    if (state == ready)
+		longestReady = Math.max(longestReady, time - since);
+
+	    state = newState;
+	    since = time;
+	}
+
+	long ticks(int which, long time) {
+	    return ticks[which] + (state == which ? time - since : 0);
+	}
+
+	long longestReady(long time) {
+	    return (state == ready) ? Math.max(longestReady, time - since)
+				    : longestReady;
+	}
+
+	/**
+	 * Add the ticks and switches of a finished thread to this total.
+	 */
+	void retire(ThreadStats stats) {
+	    for (int i=0; i<ticks.length; i++)
+		ticks[i] += stats.ticks[i];
+
+	    longestReady = Math.max(longestReady, stats.longestReady);
+	    switches += stats.switches;
+	}
+
+	static final int created = 0;
+	static final int ready = 1;
+	static final int running = 2;
+	static final int blocked = 3;
+	static final int finished = 4;
+
+	KThread thread;
+	int state = created;
+	long since;
+	long[] ticks = new long[5];
+	long longestReady = 0;
+	long switches = 0;
+    }
+
+    /**
+     * A scheduler that hands out the queues of another, wrapped to record
+     * their waits, and passes everything else straight through.
+     */
+    private class ObservedScheduler extends Scheduler {
+	ObservedScheduler(Scheduler scheduler) {
+	    this.scheduler = scheduler;
+	}
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+	    return new ObservedQueue(scheduler.newThreadQueue(transferPriority));
+	}
+
+	public int getPriority(KThread thread) {
+	    return scheduler.getPriority(thread);
+	}
+
+	public int getPriority() {
+	    return scheduler.getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+	    return scheduler.getEffectivePriority(thread);
+	}
+
+	public int getEffectivePriority() {
+	    return scheduler.getEffectivePriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+	    scheduler.setPriority(thread, priority);
+	}
+
+	public void setPriority(int priority) {
+	    scheduler.setPriority(priority);
+	}
+
+	public long getQuantum() {
+	    return scheduler.getQuantum();
+	}
+
+	public boolean shouldPreempt(KThread thread, KThread current) {
+	    return scheduler.shouldPreempt(thread, current);
+	}
+
+	public boolean setPeriod(KThread thread, long period, long deadline,
+				 long budget) {
+	    return scheduler.setPeriod(thread, period, deadline, budget);
+	}
+
+	public void runningThread(KThread thread) {
+	    scheduler.runningThread(thread);
+	}
+
+	public boolean increasePriority() {
+	    return scheduler.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+	    return scheduler.decreasePriority();
+	}
+
+	private Scheduler scheduler;
+    }
+
+    /**
+     * A thread queue that records when each thread starts waiting in another
+     * queue, and how long it waited once that queue gives it access.
+     */
+    private class ObservedQueue extends ThreadQueue {
+	ObservedQueue(ThreadQueue queue) {
+	    this.queue = queue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    queue.waitForAccess(thread);
+
+	    if (stats == null) {
+		stats = new QueueStats(getSite(new Throwable().getStackTrace()));
+		addQueue(this);
+	    }
+
+	    waiting.put(thread, Machine.timer().getTime());
+	    stats.maxWaiting = Math.max(stats.maxWaiting, waiting.size());
+	}
+
+	public KThread nextThread() {
+	    KThread thread = queue.nextThread();
+
+	    if (thread != null) {
+		Long since = waiting.remove(thread);
+		if (since != null)
+		    stats.waits.add(Machine.timer().getTime() - since, 1);
+	    }
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    queue.acquire(thread);
+	}
+
+	public void print() {
+	    queue.print();
+	}
+
+	private ThreadQueue queue;
+	/** <tt>null</tt> until a thread first waits in this queue. */
+	private QueueStats stats = null;
+	private HashMap<KThread, Long> waiting = new HashMap<KThread, Long>();
+    }
+
+    /**
+     * Name the place a thread waits in a queue from a stack trace taken in
+     * <tt>ObservedQueue.waitForAccess()</tt>: the method that called it, such
+     * as <tt>Semaphore.P()</tt>, and the method that called that one.
+     * Accessors that javac generates for inner classes are skipped.
+     */
+    private static String getSite(StackTraceElement[] trace) {
+	String site = null;
+
+	for (int i=1; i<trace.length; i++) {
+	    if (trace[i].getMethodName().startsWith("access$"))
+		continue;
+
+	    if (site != null)
+		return site + " from " + getFrame(trace[i]);
+
+	    site = getFrame(trace[i]);
+	}
+
+	return (site != null) ? site : "unknown";
+    }
+
+    private static String getFrame(StackTraceElement frame) {
+	String className = frame.getClassName();
+
+	return className.substring(className.lastIndexOf('.')+1) + "." +
+	    frame.getMethodName() + ":" + frame.getLineNumber();
+    }
+
+    private ThreadStats idleThread = null;
+    private ThreadStats running = null;
+    private long switches = 0;
+
+    /** The length of the ready queue, and the ticks spent at each length. */
+    private int length = 0;
+    private long lengthSince;
+    private Histogram lengths = new Histogram();
+
+    /** The threads that have not finished. */
+    private LinkedHashMap<KThread, ThreadStats> threads =
+	new LinkedHashMap<KThread, ThreadStats>();
+    /** The totals of the threads that have finished. */
+    private ThreadStats retired = new ThreadStats(null);
+    private int numRetired = 0;
+
+    /** The queues that have been waited in and may still be in use. */
+    private LinkedHashSet<QueueRef> liveQueues =
+	new LinkedHashSet<QueueRef>();
+    private ReferenceQueue<ObservedQueue> collectedQueues =
+	new ReferenceQueue<ObservedQueue>();
+    /** The totals of the queues that have been collected, by site. */
+    private LinkedHashMap<String, QueueGroup> retiredQueues =
+	new LinkedHashMap<String, QueueGroup>();
+}
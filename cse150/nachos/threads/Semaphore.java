@@ -28,7 +28,22 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with the specified name.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore in the statistics of
+     *				<tt>LockStats</tt>, or <tt>null</tt> to label
+     *				it with the line that first waits for it.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+
+	if (ThreadedKernel.lockStats != null)
+	    stats = ThreadedKernel.lockStats.getCounter(this, name);
     }
 
     /**
@@ -38,13 +53,22 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long since = Machine.timer().getTime();
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (stats != null)
+		stats.waited(KThread.currentThread(),
+			     Machine.timer().getTime() - since);
 	}
 	else {
 	    value--;
 	}
 
+	if (stats != null)
+	    stats.acquired();
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -99,6 +123,8 @@ public class Semaphore {
     }
 
     private int value;
+    /** The statistics this semaphore records into, or <tt>null</tt>. */
+    private LockStats.Counter stats = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,615 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * A scheduler that gives threads deterministic proportional shares.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, but instead of holding a lottery it gives each thread a
+ * <i>stride</i> inversely proportional to its tickets, and a <i>pass</i>. The
+ * thread with the lowest pass is dequeued next. While a thread runs, its pass
+ * advances by its stride for every <tt>Stats.TimerTicks</tt> ticks it runs,
+ * so over any interval each thread gets CPU time in proportion to its
+ * tickets, give or take one quantum. Dequeuing a thread from any other queue,
+ * such as a lock's, does not charge it.
+ *
+ * <p>
+ * Each queue also keeps a <i>global pass</i>, the pass of the thread it last
+ * dequeued. A thread that starts waiting with a pass behind the global pass
+ * is moved up to it, so that a thread cannot bank its share by sleeping.
+ *
+ * <p>
+ * Like a priority scheduler, a stride scheduler donates through queues that
+ * transfer priority: a thread's effective tickets are the most of its own
+ * tickets and the effective tickets of the threads waiting for anything it
+ * holds.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					donate tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideState(thread).effectiveTickets;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		   priority <= ticketsMaximum);
+
+	getStrideState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets != ticketsMaximum);
+	if (changed)
+	    setPriority(thread, tickets+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets != ticketsMinimum);
+	if (changed)
+	    setPriority(thread, tickets-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = 1 << 16;
+    /**
+     * The stride of a thread with one ticket. Strides are this divided by the
+     * effective tickets, so the rounding error of any stride is less than one
+     * part in <tt>largeStride / ticketsMaximum</tt>, and a pass cannot
+     * overflow in any realistic run.
+     */
+    public static final long largeStride = 1L << 24;
+
+    /**
+     * Charge the thread that just stopped running for the ticks it ran, and
+     * start timing the thread that is now running.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	if (running != null && running.thread != thread)
+	    running.stopRunning(time);
+
+	running = getStrideState(thread);
+	running.startRunning(time);
+    }
+
+    /**
+     * Test if this module is working, on a private scheduler: threads on the
+     * ready queue get CPU time in proportion to their tickets, and being
+     * dequeued from another queue costs nothing.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideState a = scheduler.getStrideState(new KThread());
+	StrideState b = scheduler.getStrideState(new KThread());
+	b.setTickets(3);
+
+	StrideQueue lock = scheduler.new StrideQueue(true);
+	lock.waitForAccess(a.thread);
+	Lib.assertTrue(lock.nextThread() == a.thread && a.pass == 0);
+
+	// run whichever thread is dequeued for one quantum
+	StrideQueue ready = scheduler.new StrideQueue(false);
+	ready.waitForAccess(a.thread);
+	ready.waitForAccess(b.thread);
+
+	int quanta = 400, wins = 0;
+	for (int i=0; i<quanta; i++) {
+	    KThread next = ready.nextThread();
+	    if (next == b.thread)
+		wins++;
+
+	    StrideState state = scheduler.getStrideState(next);
+	    state.startRunning(0);
+	    state.stopRunning(Stats.TimerTicks);
+	    ready.waitForAccess(next);
+	}
+	Lib.assertTrue(Math.abs(wins - quanta*3/4) <= 1,
+		       "3 of 4 tickets ran " + wins + " of " + quanta);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * pass, kept in a binary min-heap. Threads with equal passes are dequeued
+     * in the order they started waiting.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+
+	    // charge a thread that yields before it is queued
+	    if (readyQueue && state == running) {
+		running = null;
+		state.stopRunning(Machine.timer().getTime());
+	    }
+
+	    state.waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getStrideState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		// nobody takes over, so the owner gives up access
+		setOwner(null);
+		return null;
+	    }
+
+	    StrideState next = heap[0].state;
+	    globalPass = Math.max(globalPass, next.pass);
+
+	    next.acquire(this);
+
+	    // remember where running threads come from
+	    next.dequeuedFrom = this;
+
+	    return next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(" " + heap[i].state.thread + "(" +
+				 heap[i].state.pass + ")");
+	    System.out.println();
+	}
+
+	/**
+	 * Put a thread in the heap, and record its tickets for donation.
+	 */
+	void add(Waiter waiter) {
+	    if (size == heap.length) {
+		Waiter[] newHeap = new Waiter[2*heap.length];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    waiter.index = size++;
+	    heap[waiter.index] = waiter;
+	    siftUp(waiter.index);
+
+	    countTickets(waiter.tickets = waiter.state.effectiveTickets, 1);
+	}
+
+	/**
+	 * Take a thread out of the heap.
+	 */
+	void remove(Waiter waiter) {
+	    int index = waiter.index;
+
+	    Waiter last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != waiter) {
+		heap[index] = last;
+		last.index = index;
+		siftUp(index);
+		siftDown(last.index);
+	    }
+
+	    countTickets(waiter.tickets, -1);
+	}
+
+	/**
+	 * Restore the heap and the donation after a waiting thread's pass or
+	 * effective tickets changed.
+	 */
+	void update(Waiter waiter) {
+	    siftUp(waiter.index);
+	    siftDown(waiter.index);
+
+	    if (waiter.tickets != waiter.state.effectiveTickets) {
+		countTickets(waiter.tickets, -1);
+		countTickets(waiter.tickets = waiter.state.effectiveTickets, 1);
+	    }
+	}
+
+	/**
+	 * Hand this queue to a new owner, moving its donation from the old
+	 * owner to the new one.
+	 */
+	void setOwner(StrideState state) {
+	    if (!transferPriority || state == owner)
+		return;
+
+	    if (owner != null && donation > 0)
+		owner.changeDonation(donation, 0);
+
+	    owner = state;
+
+	    if (owner != null && donation > 0)
+		owner.changeDonation(0, donation);
+	}
+
+	/**
+	 * Add or remove waiting threads with the specified effective tickets,
+	 * and pass a change in the most tickets on to the owner.
+	 */
+	private void countTickets(int tickets, int delta) {
+	    if (!transferPriority)
+		return;
+
+	    Integer count = waitingTickets.get(tickets);
+	    int newCount = (count == null ? 0 : count) + delta;
+	    if (newCount == 0)
+		waitingTickets.remove(tickets);
+	    else
+		waitingTickets.put(tickets, newCount);
+
+	    int newDonation =
+		waitingTickets.isEmpty() ? 0 : waitingTickets.lastKey();
+	    if (newDonation == donation)
+		return;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+
+	    if (owner != null)
+		owner.changeDonation(oldDonation, newDonation);
+	}
+
+	private boolean before(Waiter a, Waiter b) {
+	    if (a.state.pass != b.state.pass)
+		return a.state.pass < b.state.pass;
+
+	    return a.sequence < b.sequence;
+	}
+
+	private void siftUp(int index) {
+	    Waiter waiter = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(waiter, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].index = index;
+		index = parent;
+	    }
+
+	    heap[index] = waiter;
+	    waiter.index = index;
+	}
+
+	private void siftDown(int index) {
+	    Waiter waiter = heap[index];
+
+	    while (2*index+1 < size) {
+		int child = 2*index+1;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], waiter))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].index = index;
+		index = child;
+	    }
+
+	    heap[index] = waiter;
+	    waiter.index = index;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should donate tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The pass of the thread this queue last dequeued. */
+	long globalPass = 0;
+
+	/**
+	 * <tt>true</tt> once a running thread has been dequeued from this
+	 * queue, which makes it the ready queue.
+	 */
+	boolean readyQueue = false;
+
+	private Waiter[] heap = new Waiter[8];
+	private int size = 0;
+
+	/** The thread holding the resource, if this queue donates. */
+	private StrideState owner = null;
+	/** The tickets donated to <tt>owner</tt>, or 0. */
+	private int donation = 0;
+	/** The number of waiting threads with each effective tickets. */
+	private TreeMap<Integer,Integer> waitingTickets =
+	    new TreeMap<Integer,Integer>();
+    }
+
+    /**
+     * A thread's place in one stride queue.
+     */
+    private static class Waiter {
+	Waiter(StrideState state, StrideQueue queue, long sequence) {
+	    this.state = state;
+	    this.queue = queue;
+	    this.sequence = sequence;
+	}
+
+	StrideState state;
+	StrideQueue queue;
+	/** When the thread started waiting, for FIFO order among ties. */
+	long sequence;
+	int index;
+	/** The effective tickets the queue has counted for this thread. */
+	int tickets;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, effective tickets and
+     * pass, and the donations it receives from the queues it owns.
+     */
+    protected class StrideState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(ticketsDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    this.tickets = tickets;
+
+	    updateEffectiveTickets();
+	}
+
+	/**
+	 * Return the stride of the associated thread.
+	 *
+	 * @return	the distance the pass advances each time the thread is
+	 *		dequeued.
+	 */
+	public long getStride() {
+	    return largeStride / effectiveTickets;
+	}
+
+	/**
+	 * Called when the associated thread starts waiting for access to the
+	 * resource guarded by <tt>waitQueue</tt>. A pass behind the queue's
+	 * global pass is moved up to it.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    if (pass < waitQueue.globalPass)
+		setPass(waitQueue.globalPass);
+
+	    Waiter waiter = new Waiter(this, waitQueue, nextWaitSequence++);
+	    waiting.add(waiter);
+	    waitQueue.add(waiter);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread acquired.
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    for (Iterator<Waiter> i = waiting.iterator(); i.hasNext(); ) {
+		Waiter waiter = i.next();
+		if (waiter.queue == waitQueue) {
+		    i.remove();
+		    waitQueue.remove(waiter);
+		    break;
+		}
+	    }
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Called when the associated thread starts running.
+	 */
+	void startRunning(long time) {
+	    if (dequeuedFrom != null) {
+		dequeuedFrom.readyQueue = true;
+		dequeuedFrom = null;
+	    }
+
+	    runningSince = time;
+	}
+
+	/**
+	 * Called when the associated thread stops running. Advance its pass
+	 * by its stride for every <tt>Stats.TimerTicks</tt> ticks it ran.
+	 */
+	void stopRunning(long time) {
+	    long ticks = time - runningSince;
+	    runningSince = time;
+
+	    if (ticks > 0)
+		setPass(pass + getStride() * ticks / Stats.TimerTicks);
+	}
+
+	/**
+	 * Replace a donation from one of the queues this thread owns. Either
+	 * donation may be 0, for none.
+	 */
+	void changeDonation(int oldDonation, int newDonation) {
+	    if (oldDonation > 0) {
+		int count = donations.get(oldDonation) - 1;
+		if (count == 0)
+		    donations.remove(oldDonation);
+		else
+		    donations.put(oldDonation, count);
+	    }
+	    if (newDonation > 0) {
+		Integer count = donations.get(newDonation);
+		donations.put(newDonation, (count == null ? 0 : count) + 1);
+	    }
+
+	    updateEffectiveTickets();
+	}
+
+	/**
+	 * Recompute the effective tickets. If they changed, the remaining
+	 * distance to the pass of each queue the thread waits in is rescaled
+	 * to the new stride, so that a donation takes effect at once, and the
+	 * change is passed on to the owners of those queues.
+	 */
+	private void updateEffectiveTickets() {
+	    int effective = tickets;
+	    if (!donations.isEmpty())
+		effective = Math.max(effective, donations.lastKey());
+
+	    if (effective == effectiveTickets)
+		return;
+
+	    int oldTickets = effectiveTickets;
+	    effectiveTickets = effective;
+
+	    if (waiting.isEmpty())
+		return;
+
+	    long globalPass = waiting.getFirst().queue.globalPass;
+	    long remain = pass - globalPass;
+	    if (oldTickets > 0 && remain > 0)
+		setPass(globalPass + remain * oldTickets / effective);
+	    else
+		setPass(pass);
+	}
+
+	/**
+	 * Set the pass, and reposition the thread in every queue it waits in.
+	 */
+	private void setPass(long pass) {
+	    this.pass = pass;
+
+	    for (Waiter waiter : waiting)
+		waiter.queue.update(waiter);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** The most of its own tickets and the tickets donated to it. */
+	protected int effectiveTickets = 0;
+	/** The pass of the associated thread. */
+	protected long pass = 0;
+	private long runningSince = 0;
+
+	/** The queue the thread was last dequeued from, until it runs. */
+	StrideQueue dequeuedFrom = null;
+
+	/** The number of owned queues donating each number of tickets. */
+	private TreeMap<Integer,Integer> donations =
+	    new TreeMap<Integer,Integer>();
+	/** This thread's place in each queue it waits in. */
+	private LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+    }
+
+    /** Numbers threads in the order they start waiting. */
+    private long nextWaitSequence = 0;
+
+    /** The thread that is running, as far as the scheduler knows. */
+    private StrideState running = null;
+}
@@ -1,25 +1,46 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, optionally bounded. A bounded queue pushes back on
+ * its producers: <tt>add()</tt> waits while the queue is full, and
+ * <tt>offer()</tt> refuses to add. Every queue records the most objects it
+ * has held at once, its high-water mark.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new, unbounded synchronized queue.
      */
     public SynchList() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds up to <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the most objects the queue can hold, or 0 for
+     *				no limit.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+
 	list = new LinkedList<Object>();
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting while the
+     * queue is full. If another thread is waiting in <tt>removeFirst()</tt>
+     * or <tt>drainTo()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
@@ -27,9 +48,32 @@ public class SynchList {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
-	list.add(o);
-	listEmpty.wake();
+	while (isFull())
+	    listFull.sleep();
+	append(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue, unless the queue is
+     * full. Never waits.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = !isFull();
+	if (added)
+	    append(o);
+	else
+	    refused++;
 	lock.release();
+
+	return added;
     }
 
     /**
@@ -45,11 +89,96 @@ public class SynchList {
 	while (list.isEmpty())
 	    listEmpty.sleep();
 	o = list.removeFirst();
+	listFull.wake();
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Wait until the queue is non-empty, and then move up to <i>max</i>
+     * objects from the front of the queue to the end of <i>c</i>, in order,
+     * under one acquisition of the lock. One producer waiting for room is
+     * woken for every object moved.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to move. Must be positive.
+     * @return	the number of objects moved, at least 1.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	Lib.assertTrue(max > 0);
+
+	lock.acquire();
+	while (list.isEmpty())
+	    listEmpty.sleep();
+
+	int moved = 0;
+	while (moved < max && !list.isEmpty()) {
+	    c.add(list.removeFirst());
+	    listFull.wake();
+	    moved++;
+	}
+
+	// leave the rest for another waiting consumer
+	if (!list.isEmpty())
+	    listEmpty.wake();
+	lock.release();
+
+	return moved;
+    }
+
+    /**
+     * Return the number of objects in the queue. The number may have changed
+     * by the time the caller uses it.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	lock.acquire();
+	int size = list.size();
+	lock.release();
+
+	return size;
+    }
+
+    /**
+     * Return the most objects the queue can hold.
+     *
+     * @return	the capacity of the queue, or 0 if it is unbounded.
+     */
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Return the most objects the queue has held at once.
+     *
+     * @return	the high-water mark of the queue.
+     */
+    public int getHighWater() {
+	return highWater;
+    }
+
+    /**
+     * Return the number of objects <tt>offer()</tt> refused because the
+     * queue was full.
+     *
+     * @return	the number of objects refused.
+     */
+    public long getRefused() {
+	return refused;
+    }
+
+    private boolean isFull() {
+	return (capacity > 0 && list.size() >= capacity);
+    }
+
+    private void append(Object o) {
+	list.add(o);
+	highWater = Math.max(highWater, list.size());
+	listEmpty.wake();
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -65,6 +194,35 @@ public class SynchList {
 	private SynchList pong;
     }
 
+    /**
+     * A thread that adds one object to a queue, or with <i>max</i> &gt; 0,
+     * drains up to <i>max</i> objects from it, and then signals.
+     */
+    private static class Tester implements Runnable {
+	Tester(SynchList list, Object o, int max, Semaphore done) {
+	    this.list = list;
+	    this.o = o;
+	    this.max = max;
+	    this.done = done;
+	}
+
+	public void run() {
+	    if (max > 0)
+		list.drainTo(drained, max);
+	    else
+		list.add(o);
+
+	    done.V();
+	}
+
+	private SynchList list;
+	private Object o;
+	private int max;
+	private Semaphore done;
+
+	LinkedList<Object> drained = new LinkedList<Object>();
+    }
+
     /**
      * Test that this module is working.
      */
@@ -79,10 +237,124 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	boundedTest();
+	drainTest();
+    }
+
+    /**
+     * Fill a queue of capacity 2, and check that <tt>offer()</tt> refuses
+     * and <tt>add()</tt> waits until there is room, and that draining wakes
+     * one waiting producer for every object it moves.
+     */
+    private static void boundedTest() {
+	SynchList list = new SynchList(2);
+	Semaphore done = new Semaphore(0);
+	LinkedList<Object> drained = new LinkedList<Object>();
+
+	Lib.assertTrue(list.offer(new Integer(0)) && list.offer(new Integer(1)));
+	Lib.assertTrue(!list.offer(new Integer(2)) && list.getRefused() == 1);
+	Lib.assertTrue(list.size() == 2 && list.getHighWater() == 2);
+
+	new KThread(new Tester(list, new Integer(2), 0, done))
+	    .setName("full adder").fork();
+	waitForBlocked();
+	Lib.assertTrue(list.size() == 2);
+
+	Lib.assertTrue(((Integer) list.removeFirst()).intValue() == 0);
+	done.P();
+	Lib.assertTrue(list.size() == 2);
+
+	// two producers wait for room, and draining two objects wakes both
+	new KThread(new Tester(list, new Integer(3), 0, done))
+	    .setName("adder 3").fork();
+	new KThread(new Tester(list, new Integer(4), 0, done))
+	    .setName("adder 4").fork();
+	waitForBlocked();
+
+	Lib.assertTrue(list.drainTo(drained, 2) == 2);
+	done.P();
+	done.P();
+
+	// drainTo() stops at max, even with more objects queued
+	Lib.assertTrue(list.drainTo(drained, 1) == 1 && list.size() == 1);
+	Lib.assertTrue(list.drainTo(drained, 5) == 1 && list.size() == 0);
+
+	Lib.assertTrue(drained.size() == 4);
+	for (int i=0; i<2; i++)
+	    Lib.assertTrue(((Integer) drained.get(i)).intValue() == i+1);
+	Lib.assertTrue(drained.contains(new Integer(3)) &&
+		       drained.contains(new Integer(4)));
+
+	Lib.assertTrue(list.getHighWater() == 2 && list.getRefused() == 1);
+    }
+
+    /**
+     * Check that two consumers waiting in <tt>drainTo()</tt> share what is
+     * added, in order, each taking no more than its maximum, and that an
+     * unbounded queue keeps its high-water mark.
+     */
+    private static void drainTest() {
+	SynchList list = new SynchList();
+	Semaphore done = new Semaphore(0);
+
+	Tester first = new Tester(list, null, 2, done);
+	Tester second = new Tester(list, null, 2, done);
+	new KThread(first).setName("drainer 1").fork();
+	new KThread(second).setName("drainer 2").fork();
+	waitForBlocked();
+
+	for (int i=0; i<5; i++)
+	    list.add(new Integer(i));
+	done.P();
+	done.P();
+
+	// each consumer took a run of objects in order, and the rest, at least
+	// one, are still queued
+	Lib.assertTrue(first.drained.size() >= 1 && first.drained.size() <= 2 &&
+		       second.drained.size() >= 1 && second.drained.size() <= 2);
+
+	Tester earlier =
+	    (((Integer) first.drained.getFirst()).intValue() == 0) ?
+	    first : second;
+	Tester later = (earlier == first) ? second : first;
+
+	LinkedList<Object> all = new LinkedList<Object>();
+	all.addAll(earlier.drained);
+	all.addAll(later.drained);
+	while (list.size() > 0)
+	    all.add(list.removeFirst());
+
+	Lib.assertTrue(all.size() == 5);
+	for (int i=0; i<5; i++)
+	    Lib.assertTrue(((Integer) all.get(i)).intValue() == i);
+
+	// the high-water mark stays put as the queue empties
+	SynchList unbounded = new SynchList();
+	for (int i=0; i<3; i++)
+	    unbounded.add(new Integer(i));
+	unbounded.drainTo(all, 2);
+	unbounded.add(new Integer(3));
+	Lib.assertTrue(unbounded.size() == 2 && unbounded.getHighWater() == 3);
+    }
+
+    /**
+     * Yield until every other thread has blocked or finished.
+     */
+    private static void waitForBlocked() {
+	do {
+	    KThread.yield();
+	}
+	while (KThread.hasReadyThreads());
     }
 
+    private int capacity;
+    private int highWater = 0;
+    private long refused = 0;
+
     private LinkedList<Object> list;
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
 }
 
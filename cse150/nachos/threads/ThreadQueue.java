@@ -86,6 +86,12 @@ public abstract class ThreadQueue {
      * This method should not be called for a thread returned from
      * <tt>nextThread()</tt>.
      *
+     * <p>
+     * This method may also be called while other threads are waiting, to
+     * hand the resource to a new holder without waking any of them. The
+     * waiting threads keep their places, and if the queue transfers
+     * priority, they donate to the new holder from then on.
+     *
      * @param	thread	the thread that has received access, but was not
      * 			returned from <tt>nextThread()</tt>.
      */
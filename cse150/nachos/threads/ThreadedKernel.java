@@ -22,6 +22,16 @@ public class ThreadedKernel extends Kernel {
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+	// record scheduling statistics, if requested
+	if (Config.getBoolean("ThreadedKernel.schedulerStats", false)) {
+	    schedulerStats = new SchedulerStats();
+	    scheduler = schedulerStats.observe(scheduler);
+	}
+
+	// record lock contention, if requested
+	if (Config.getBoolean("ThreadedKernel.lockStats", false))
+	    lockStats = new LockStats();
+
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
@@ -48,7 +58,16 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Condition2.selfTest();
 	SynchList.selfTest();
+	Communicator.selfTest();
+	ReadWriteLock.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	FairScheduler.selfTest();
+	EDFScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -70,6 +89,16 @@ public class ThreadedKernel extends Kernel {
 
     /** Globally accessible reference to the scheduler. */
     public static Scheduler scheduler = null;
+    /**
+     * Globally accessible reference to the scheduling statistics, or
+     * <tt>null</tt> if they are not being recorded.
+     */
+    public static SchedulerStats schedulerStats = null;
+    /**
+     * Globally accessible reference to the lock contention statistics, or
+     * <tt>null</tt> if they are not being recorded.
+     */
+    public static LockStats lockStats = null;
     /** Globally accessible reference to the alarm. */
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
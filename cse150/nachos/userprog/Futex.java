@@ -0,0 +1,210 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel half of user-level synchronization with futexes. A user program
+ * keeps a lock or a counter in an ordinary word of its own memory, and
+ * updates it with compare-and-swap, built from the processor's <tt>ll</tt>
+ * and <tt>sc</tt> instructions, so taking and releasing a free lock never
+ * enters the kernel. Only a thread that must wait calls
+ * <tt>futex_wait()</tt>, and only a thread that sees waiters calls
+ * <tt>futex_wake()</tt>.
+ *
+ * <p>
+ * Waiting threads are queued by the physical address of the word they wait
+ * on, in thread queues allocated from the scheduler, so the same word is the
+ * same futex in every address space that maps it. A queue only exists while
+ * a thread waits in it.
+ */
+public class Futex {
+    /**
+     * Allocate a new futex table, with no threads waiting.
+     */
+    public Futex() {
+    }
+
+    /**
+     * Atomically check that the word at <i>vaddr</i> in the memory of
+     * <i>process</i> still holds <i>expected</i>, and if it does, sleep until
+     * another thread calls <tt>wake()</tt> on the same word. If the word has
+     * changed, the thread that changed it may already have called
+     * <tt>wake()</tt>, so this returns at once.
+     *
+     * @param	process		the process of the current thread.
+     * @param	vaddr		the virtual address of the word.
+     * @param	expected	the value the word must hold to sleep.
+     * @return	0 if the thread slept and was woken, or -1 if the word did
+     *		not hold <i>expected</i>, or is not a mapped, aligned word.
+     */
+    public int wait(UserProcess process, int vaddr, int expected) {
+	return wait(process.translateWord(vaddr), expected);
+    }
+
+    /**
+     * Wait on the word at physical address <i>paddr</i>, or -1 for a bad
+     * address, as <tt>wait()</tt> does once it has translated the address.
+     */
+    private int wait(int paddr, int expected) {
+	if (paddr == -1)
+	    return -1;
+
+	// no wake() can slip in between reading the word and queueing
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (Lib.bytesToInt(Machine.processor().getMemory(), paddr, 4) !=
+	    expected) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	Waiters waiters = queues.get(paddr);
+	if (waiters == null) {
+	    waiters = new Waiters();
+	    queues.put(paddr, waiters);
+	}
+
+	waiters.count++;
+	waiters.queue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+	return 0;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads waiting on the word at <i>vaddr</i> in
+     * the memory of <i>process</i>, in the order the scheduler's thread queue
+     * gives them.
+     *
+     * @param	process	the process of the current thread.
+     * @param	vaddr	the virtual address of the word.
+     * @param	count	the most threads to wake.
+     * @return	the number of threads woken, or -1 if <i>vaddr</i> is not a
+     *		mapped, aligned word.
+     */
+    public int wake(UserProcess process, int vaddr, int count) {
+	return wake(process.translateWord(vaddr), count);
+    }
+
+    /**
+     * Wake up to <i>count</i> threads waiting on the word at physical address
+     * <i>paddr</i>, or return -1 for a bad address, as <tt>wake()</tt> does
+     * once it has translated the address.
+     */
+    private int wake(int paddr, int count) {
+	if (paddr == -1)
+	    return -1;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int woken = 0;
+
+	Waiters waiters = queues.get(paddr);
+	if (waiters != null) {
+	    while (woken < count && waiters.count > 0) {
+		waiters.queue.nextThread().ready();
+		waiters.count--;
+		woken++;
+	    }
+
+	    if (waiters.count == 0)
+		queues.remove(paddr);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    /**
+     * Test that a futex is keyed on the physical word. Two page tables map
+     * the same physical page at different virtual pages. Threads wait on the
+     * word through one mapping and are woken through the other, and
+     * <tt>wait()</tt> returns at once if the word does not hold the expected
+     * value.
+     */
+    public static void selfTest() {
+	final Futex futex = new Futex();
+
+	int ppn = UserKernel.getAvailablePage();
+	TranslationEntry[] first = new TranslationEntry[2];
+	TranslationEntry[] second = new TranslationEntry[2];
+	first[0] = new TranslationEntry(0, ppn, true, false, false, false);
+	second[1] = new TranslationEntry(1, ppn, true, false, false, false);
+
+	final int paddr = UserProcess.translateWord(first, 8);
+	int alias = UserProcess.translateWord(second, Processor.pageSize + 8);
+	Lib.assertTrue(paddr == ppn*Processor.pageSize + 8 && alias == paddr);
+	Lib.assertTrue(UserProcess.translateWord(first, 9) == -1);
+	Lib.assertTrue(UserProcess.translateWord(second, 8) == -1);
+
+	byte[] memory = Machine.processor().getMemory();
+	Lib.bytesFromInt(memory, paddr, 1);
+
+	// a changed word or a bad address returns at once
+	Lib.assertTrue(futex.wait(paddr, 0) == -1);
+	Lib.assertTrue(futex.wait(-1, 1) == -1);
+	Lib.assertTrue(futex.wake(alias, 1) == 0);
+
+	final int[] returned = new int[1];
+	Runnable waiter = new Runnable() {
+		public void run() {
+		    Lib.assertTrue(futex.wait(paddr, 1) == 0);
+		    returned[0]++;
+		}
+	    };
+
+	KThread a = new KThread(waiter).setName("futex waiter a");
+	KThread b = new KThread(waiter).setName("futex waiter b");
+	a.fork();
+	b.fork();
+
+	while (futex.waiting(paddr) < 2)
+	    KThread.yield();
+
+	// woken through the other mapping, one at a time
+	Lib.assertTrue(futex.wake(alias, 1) == 1);
+	Lib.assertTrue(futex.waiting(paddr) == 1);
+	while (returned[0] < 1)
+	    KThread.yield();
+	Lib.assertTrue(returned[0] == 1);
+
+	Lib.assertTrue(futex.wake(alias, 5) == 1);
+	Lib.assertTrue(futex.queues.isEmpty());
+
+	while (returned[0] < 2)
+	    KThread.yield();
+
+	Lib.bytesFromInt(memory, paddr, 0);
+	UserKernel.addAvailablePage(ppn);
+    }
+
+    /**
+     * Return the number of threads waiting on the word at physical address
+     * <i>paddr</i>.
+     */
+    private int waiting(int paddr) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Waiters waiters = queues.get(paddr);
+	int count = (waiters == null) ? 0 : waiters.count;
+
+	Machine.interrupt().restore(intStatus);
+	return count;
+    }
+
+    /**
+     * The threads waiting on one word.
+     */
+    private static class Waiters {
+	ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+	int count = 0;
+    }
+
+    /** The waiters on each word, by its physical address. */
+    private HashMap<Integer, Waiters> queues = new HashMap<Integer, Waiters>();
+}
@@ -26,9 +26,10 @@ public class UserKernel extends ThreadedKernel {
     public void initialize(String[] args) {
         super.initialize(args);
         freePages = new LinkedList<Integer>();
-        pageLock = new Lock();
+        pageLock = new Lock("UserKernel.pageLock");
 
         console = new SynchConsole(Machine.console());
+        futex = new Futex();
 
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
@@ -41,11 +42,13 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test the futex table. The console device test is left disabled.
      */
     public void selfTest() {
         super.selfTest();
 
+        Futex.selfTest();
+
         /*
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
@@ -141,6 +144,7 @@ public class UserKernel extends ThreadedKernel {
     }
 
     public static void addAvailablePage(int page) {
+        Machine.processor().invalidatePage(page);
         pageLock.acquire();
         freePages.add(page);
         pageLock.release();
@@ -158,6 +162,11 @@ public class UserKernel extends ThreadedKernel {
      */
     public static SynchConsole console;
 
+    /**
+     * Globally accessible reference to the futex wait queues.
+     */
+    public static Futex futex;
+
     private static LinkedList<Integer> freePages;
     private static Lock pageLock;
     private static int numProcs = 0;
@@ -230,6 +230,7 @@ public class UserProcess {
             if (  0 > physical_addr  ||  physicalMemory.length <= physical_addr)
                 return 0;
             TableEntry.dirty = !false;
+            Machine.processor().invalidatePage(TableEntry.ppn);
 
             int amount = Math.min((maxLimit - physical_addr), Math.min(length - memoryWrite, physicalMemory.length - physical_addr));
             int maxLimit = (TableEntry.ppn + 1) * pageSize;
@@ -799,6 +800,38 @@ public class UserProcess {
         return -1;
     }
 
+    /**
+     * Translate the virtual address of a word in this process's memory to
+     * its physical address, which is how futexes are keyed.
+     *
+     * @param vaddr the virtual address of the word.
+     * @return the physical address, or -1 if the word is unaligned or not
+     * mapped.
+     */
+    int translateWord(int vaddr) {
+        return translateWord(pageTable, vaddr);
+    }
+
+    /**
+     * Translate the virtual address of a word through the specified page
+     * table to its physical address.
+     *
+     * @param pageTable the page table to translate through.
+     * @param vaddr the virtual address of the word.
+     * @return the physical address, or -1 if the word is unaligned or not
+     * mapped.
+     */
+    static int translateWord(TranslationEntry[] pageTable, int vaddr) {
+        if ((vaddr & 0x3) != 0)
+            return -1;
+
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid)
+            return -1;
+
+        return pageTable[vpn].ppn * pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
     //check if address is within bounds
     boolean inBounds(int buffer){
         int check = Processor.pageFromAddress(buffer);
@@ -820,7 +853,9 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallFutexWait = 13,
+            syscallFutexWake = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -841,6 +876,10 @@ public class UserProcess {
      * </tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *address, int expected);
+     * </tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *address, int count);
+     * </tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -874,6 +913,10 @@ public class UserProcess {
                 return closeFile(a0);
             case syscallUnlink:
                 return unlinkFile(a0);
+            case syscallFutexWait:
+                return UserKernel.futex.wait(this, a0, a1);
+            case syscallFutexWake:
+                return UserKernel.futex.wake(this, a0, a1);
 
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);